@@ -0,0 +1,74 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.*;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Build synthetic embulk pages for benchmarks without an embulk exec session
+ */
+public class BenchmarkPages {
+
+    private static final BufferAllocator ALLOCATOR = new BufferAllocator() {
+        @Override
+        public Buffer allocate() {
+            return allocate(32 * 1024);
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity) {
+            return Buffer.allocate(Math.max(minimumCapacity, 32 * 1024));
+        }
+    };
+
+    private BenchmarkPages() {
+    }
+
+    /**
+     * @param schema      input schema
+     * @param recordCount record count of all pages
+     * @return pages filled with generated values of each column type
+     */
+    public static List<Page> build(Schema schema, int recordCount) {
+        final List<Page> pages = new ArrayList<Page>();
+        PageOutput output = new PageOutput() {
+            @Override
+            public void add(Page page) {
+                pages.add(page);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        PageBuilder builder = new PageBuilder(ALLOCATOR, schema, output);
+        for (int row = 0; row < recordCount; row++) {
+            for (Column column : schema.getColumns()) {
+                Type type = column.getType();
+                if (type instanceof StringType) {
+                    builder.setString(column, "value_" + (row % 100) + "_" + column.getIndex());
+                } else if (type instanceof BooleanType) {
+                    builder.setBoolean(column, row % 2 == 0);
+                } else if (type instanceof LongType) {
+                    builder.setLong(column, row * 31L + column.getIndex());
+                } else if (type instanceof DoubleType) {
+                    builder.setDouble(column, row * 0.5 + column.getIndex());
+                } else if (type instanceof TimestampType) {
+                    builder.setTimestamp(column, Timestamp.ofEpochMilli(1600000000000L + row * 1000L));
+                } else {
+                    builder.setNull(column);
+                }
+            }
+            builder.addRecord();
+        }
+        builder.finish();
+        return pages;
+    }
+}
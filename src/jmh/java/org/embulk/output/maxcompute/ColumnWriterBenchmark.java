@@ -0,0 +1,103 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.data.ArrayRecord;
+import com.aliyun.odps.data.Record;
+import org.embulk.spi.*;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare record conversion of the compiled column writers with the former
+ * per cell instanceof chain and column name lookup, with a wide input schema
+ *
+ * Run with: ./gradlew jmh -PjmhArgs="ColumnWriterBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ColumnWriterBenchmark {
+
+    static final int RECORD_COUNT = 1024;
+
+    @Param({"200"})
+    public int columnCount;
+
+    private Schema schema;
+    private List<Page> pages;
+    private PageReader pageReader;
+    private Map<String, String> mappings;
+    private Record record;
+    private ColumnWriter[] columnWriters;
+
+    @Setup
+    public void setup() {
+        Type[] types = {Types.STRING, Types.LONG, Types.DOUBLE, Types.BOOLEAN, Types.TIMESTAMP};
+        OdpsType[] odpsTypes = {OdpsType.STRING, OdpsType.BIGINT, OdpsType.DOUBLE, OdpsType.BOOLEAN, OdpsType.DATETIME};
+        Schema.Builder builder = Schema.builder();
+        TableSchema tableSchema = new TableSchema();
+        mappings = new HashMap<String, String>();
+        for (int i = 0; i < columnCount; i++) {
+            builder.add("c" + i, types[i % types.length]);
+            tableSchema.addColumn(new com.aliyun.odps.Column("c" + i, odpsTypes[i % odpsTypes.length]));
+            mappings.put("c" + i, "c" + i);
+        }
+        schema = builder.build();
+        pages = BenchmarkPages.build(schema, RECORD_COUNT);
+        pageReader = new PageReader(schema);
+        record = new ArrayRecord(tableSchema);
+        columnWriters = ColumnWriter.compile(schema, tableSchema, mappings);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public void instanceofByName(Blackhole blackhole) {
+        for (Page page : pages) {
+            pageReader.setPage(page);
+            while (pageReader.nextRecord()) {
+                for (Column column : schema.getColumns()) {
+                    String name = mappings.containsKey(column.getName()) ? mappings.get(column.getName()) : column.getName();
+                    if (column.getType() instanceof StringType) {
+                        record.setString(name, pageReader.getString(column));
+                    } else if (column.getType() instanceof BooleanType) {
+                        record.setBoolean(name, pageReader.getBoolean(column));
+                    } else if (column.getType() instanceof LongType) {
+                        record.setBigint(name, pageReader.getLong(column));
+                    } else if (column.getType() instanceof DoubleType) {
+                        record.setDouble(name, pageReader.getDouble(column));
+                    } else if (column.getType() instanceof TimestampType) {
+                        Timestamp timestamp = pageReader.getTimestamp(column);
+                        record.setDatetime(name, new Date(timestamp.toEpochMilli()));
+                    }
+                }
+                blackhole.consume(record);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public void compiledColumnWriters(Blackhole blackhole) {
+        for (Page page : pages) {
+            pageReader.setPage(page);
+            while (pageReader.nextRecord()) {
+                for (ColumnWriter columnWriter : columnWriters) {
+                    columnWriter.write(pageReader, record);
+                }
+                blackhole.consume(record);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import org.embulk.EmbulkEmbed;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.*;
+import org.embulk.spi.type.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second of MaxcomputePageOutput.add() from embulk pages to uploaded blocks,
+ * blocks are sent with the tunnel client of the SDK to a local tunnel stand-in, so no ODPS account is needed
+ *
+ * Each iteration writes to a new upload session, blocks are uploaded once they reach blockBufferSize
+ * Run with gc profiler to see allocation per row as gc.alloc.rate.norm:
+ * ./gradlew jmh -PjmhArgs="PageOutputBenchmark -prof gc"
+ * ./gradlew jmh -PjmhArgs="PageOutputBenchmark -p columnCount=200 -p compression=snappy -p uploadThreads=4"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PageOutputBenchmark {
+
+    static final int RECORD_COUNT = 4096;
+
+    // Narrow and wide tables
+    @Param({"10", "100"})
+    public int columnCount;
+
+    // numeric: mostly long and double columns, string: mostly string columns
+    @Param({"numeric", "string"})
+    public String columnTypes;
+
+    @Param({"none"})
+    public String compression;
+
+    @Param({"1"})
+    public int uploadThreads;
+
+    @Param({"4194304"})
+    public long blockBufferSize;
+
+    private LocalTunnelServer server;
+    private EmbulkEmbed embed;
+    private ExecSession session;
+    private Schema schema;
+    private List<Page> pages;
+    private TaskSource taskSource;
+    private MaxcomputeOutputPlugin plugin;
+    private TransactionalPageOutput pageOutput;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        Type[] types;
+        OdpsType[] odpsTypes;
+        if ("string".equals(columnTypes)) {
+            types = new Type[]{Types.STRING, Types.STRING, Types.STRING, Types.LONG, Types.TIMESTAMP};
+            odpsTypes = new OdpsType[]{OdpsType.STRING, OdpsType.STRING, OdpsType.STRING, OdpsType.BIGINT, OdpsType.DATETIME};
+        } else {
+            types = new Type[]{Types.LONG, Types.LONG, Types.DOUBLE, Types.DOUBLE, Types.LONG,
+                    Types.DOUBLE, Types.BOOLEAN, Types.LONG, Types.TIMESTAMP, Types.STRING};
+            odpsTypes = new OdpsType[]{OdpsType.BIGINT, OdpsType.BIGINT, OdpsType.DOUBLE, OdpsType.DOUBLE, OdpsType.BIGINT,
+                    OdpsType.DOUBLE, OdpsType.BOOLEAN, OdpsType.BIGINT, OdpsType.DATETIME, OdpsType.STRING};
+        }
+        Schema.Builder builder = Schema.builder();
+        TableSchema tableSchema = new TableSchema();
+        for (int i = 0; i < columnCount; i++) {
+            builder.add("c" + i, types[i % types.length]);
+            tableSchema.addColumn(new com.aliyun.odps.Column("c" + i, odpsTypes[i % odpsTypes.length]));
+        }
+        schema = builder.build();
+        pages = BenchmarkPages.build(schema, RECORD_COUNT);
+
+        server = new LocalTunnelServer(tableSchema);
+        server.start();
+        embed = new EmbulkEmbed.Bootstrap().initialize();
+        session = ExecSession.builder(embed.getInjector()).build();
+        taskSource = Exec.doWith(session, new ExecAction<TaskSource>() {
+            @Override
+            public TaskSource run() {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("accessKeyId", "benchmark")
+                        .set("accessKeySecret", "benchmark")
+                        .set("odpsUrl", server.getUrl())
+                        .set("tunnelUrl", server.getUrl())
+                        .set("projectName", "benchmark")
+                        .set("tableName", "benchmark")
+                        .set("compression", compression)
+                        .set("uploadThreads", uploadThreads)
+                        .set("blockBufferSize", blockBufferSize);
+                MaxcomputeOutputPlugin.PluginTask task = config.loadConfig(MaxcomputeOutputPlugin.PluginTask.class);
+                task.setTaskCount(1);
+                task.setUploadSessionId(null);
+                task.setStagingTableName(null);
+                plugin = new MaxcomputeOutputPlugin();
+                return task.dump();
+            }
+        });
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws Exception {
+        // Loggers of the page output are taken from the exec session, add() itself runs without it
+        pageOutput = Exec.doWith(session, new ExecAction<TransactionalPageOutput>() {
+            @Override
+            public TransactionalPageOutput run() {
+                return plugin.open(taskSource, schema, 0);
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public void add() {
+        for (Page page : pages) {
+            pageOutput.add(page);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws Exception {
+        Exec.doWith(session, new ExecAction<Void>() {
+            @Override
+            public Void run() {
+                try {
+                    pageOutput.finish();
+                    pageOutput.commit();
+                } finally {
+                    pageOutput.close();
+                }
+                return null;
+            }
+        });
+        if (server.getBlocks() == 0) {
+            throw new IllegalStateException("No block is received by the local tunnel server");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (null != session) {
+            session.cleanup();
+        }
+        if (null != embed) {
+            embed.destroy();
+        }
+        if (null != server) {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.data.ArrayRecord;
+import com.aliyun.odps.data.Record;
+import com.aliyun.odps.tunnel.io.CompressOption;
+import org.embulk.spi.*;
+import org.embulk.spi.type.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per record of the whole record path in memory with a numeric-heavy input schema,
+ * from converting page values to the record to a completed block of protobuf encoded and compressed records
+ *
+ * Conversion alone is measured by ColumnWriterBenchmark, uploading by PageOutputBenchmark
+ * Run with gc profiler to see allocation per record:
+ * ./gradlew jmh -PjmhArgs="RecordPathBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecordPathBenchmark {
+
+    static final int RECORD_COUNT = 1024;
+
+    @Param({"50"})
+    public int columnCount;
+
+    @Param({"none", "deflate", "snappy"})
+    public String compression;
+
+    private List<Page> pages;
+    private PageReader pageReader;
+    private Record record;
+    private ColumnWriter[] columnWriters;
+    private BlockRecordPack recordPack;
+
+    @Setup
+    public void setup() throws IOException {
+        // Mostly numeric columns as in fact tables, one timestamp and one string column of each ten
+        Type[] types = {Types.LONG, Types.LONG, Types.LONG, Types.LONG, Types.DOUBLE,
+                Types.DOUBLE, Types.DOUBLE, Types.LONG, Types.TIMESTAMP, Types.STRING};
+        OdpsType[] odpsTypes = {OdpsType.BIGINT, OdpsType.BIGINT, OdpsType.BIGINT, OdpsType.BIGINT, OdpsType.DOUBLE,
+                OdpsType.DOUBLE, OdpsType.DOUBLE, OdpsType.BIGINT, OdpsType.DATETIME, OdpsType.STRING};
+        Schema.Builder builder = Schema.builder();
+        TableSchema tableSchema = new TableSchema();
+        for (int i = 0; i < columnCount; i++) {
+            builder.add("c" + i, types[i % types.length]);
+            tableSchema.addColumn(new com.aliyun.odps.Column("c" + i, odpsTypes[i % odpsTypes.length]));
+        }
+        Schema schema = builder.build();
+        pages = BenchmarkPages.build(schema, RECORD_COUNT);
+        pageReader = new PageReader(schema);
+        record = new ArrayRecord(tableSchema);
+        columnWriters = ColumnWriter.compile(schema, tableSchema, Collections.<String, String>emptyMap());
+        recordPack = new BlockRecordPack(tableSchema, generateCompressOption());
+    }
+
+    // Same options as the plugin with the default compressionLevel
+    private CompressOption generateCompressOption() {
+        if ("deflate".equals(compression)) {
+            return new CompressOption(CompressOption.CompressAlgorithm.ODPS_ZLIB, 1, 0);
+        } else if ("snappy".equals(compression)) {
+            return new CompressOption(CompressOption.CompressAlgorithm.ODPS_SNAPPY, 0, 0);
+        }
+        return new CompressOption(CompressOption.CompressAlgorithm.ODPS_RAW, 0, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public void convertAndEncode(Blackhole blackhole) throws IOException {
+        for (Page page : pages) {
+            pageReader.setPage(page);
+            while (pageReader.nextRecord()) {
+                for (ColumnWriter columnWriter : columnWriters) {
+                    columnWriter.write(pageReader, record);
+                }
+                recordPack.append(record);
+            }
+        }
+        // Completing writes the checksum trailer and flushes the compressor, as before uploading a block
+        recordPack.complete();
+        blackhole.consume(recordPack.getProtobufStream().size());
+        recordPack.reset();
+    }
+}
@@ -0,0 +1,52 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.tunnel.io.Checksum;
+import com.aliyun.odps.tunnel.io.CompressOption;
+import com.aliyun.odps.tunnel.io.ProtobufRecordPack;
+
+import java.io.IOException;
+
+/**
+ * Record pack of one tunnel block, records are compressed while appended
+ * Bytes before compression are exposed to report the effect of compression
+ */
+public class BlockRecordPack extends ProtobufRecordPack {
+
+    private final long blockSize;
+
+    /**
+     * @param schema         table schema of the upload session
+     * @param compressOption compression of the block
+     * @throws IOException
+     */
+    public BlockRecordPack(TableSchema schema, CompressOption compressOption) throws IOException {
+        this(schema, compressOption, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param schema         table schema of the upload session
+     * @param compressOption compression of the block
+     * @param blockSize      block size the buffer is created for
+     * @param capacity       initial capacity of the buffer, grown while appending if 0
+     * @throws IOException
+     */
+    public BlockRecordPack(TableSchema schema, CompressOption compressOption, long blockSize, int capacity) throws IOException {
+        super(schema, new Checksum(), capacity, compressOption);
+        this.blockSize = blockSize;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Must be called before the pack is completed for uploading
+     *
+     * @return bytes of serialized records before compression
+     * @throws IOException
+     */
+    public long getRawBytes() throws IOException {
+        return getTotalBytesWritten();
+    }
+}
@@ -0,0 +1,592 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.data.Record;
+import com.aliyun.odps.data.RecordWriter;
+import com.aliyun.odps.tunnel.TableTunnel;
+import com.aliyun.odps.tunnel.io.CompressOption;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Record writer which keeps one block buffer for the whole task,
+ * the buffer is uploaded as a new tunnel block once it reaches the block size or record limit
+ *
+ * With more than one upload thread, full buffers are handed to an uploader pool and
+ * records are appended to the next free buffer while previous blocks are still uploading
+ *
+ * Records are compressed while appended to the buffer, so block size bounds the compressed bytes of one block
+ *
+ * When a failed task is resumed with the same input, blocks already uploaded by the failed attempt can be skipped,
+ * their records are still converted to find the block boundaries but not uploaded again
+ * Blocks of the former attempt which are not written again, as the resumed attempt ends with fewer blocks,
+ * are overwritten with empty blocks on close, so the upload session is committed with all of its blocks and no stale records
+ *
+ * A failed block is retried on its own with the encoded bytes kept in its buffer, input pages are never read again.
+ * In pipelined mode with a spill directory, the encoded bytes are moved to a local file while retrying,
+ * so the buffer is reused for next records instead of waiting for the retries
+ *
+ * Block size is taken from the block size controller for each block, buffers created for a former block size are dropped
+ * With a memory budget, each buffer reserves its bytes from the budget shared by all writers in the JVM
+ *
+ * When the block ids of the upload session are used up, the writer continues with a new upload session
+ * taken from the session factory, so the blocks of one writer may be committed with more than one session
+ */
+public class BlockRecordWriter implements RecordWriter {
+
+    public static final long MAX_BLOCK_ID = 20000;
+
+    private static final AtomicInteger uploaderCount = new AtomicInteger();
+
+    private final Logger log = Exec.getLogger(BlockRecordWriter.class);
+
+    private final UploadSessionFactory uploadSessionFactory;
+    private final BlockSizeController blockSizeController;
+    private final long blockRecordLimit;
+    private final CompressOption compressOption;
+    private final RetryPolicy retryPolicy;
+    private final File spillDirectory;
+    private final UploadMetrics metrics;
+    private final MemoryBudget memoryBudget;
+    private final List<SessionBlocks> sessions = new ArrayList<SessionBlocks>();
+    private final Set<Long> uploadedBlockIds = new HashSet<Long>();
+    private final Set<Long> staleBlockIds = new HashSet<Long>();
+    private final ExecutorService uploader;
+    private final LinkedBlockingQueue<BlockRecordPack> freeRecordPacks;
+    private final int maxRecordPacks;
+    private int recordPackCount;
+    private long reservedBytes;
+    private BlockRecordPack recordPack;
+    private long blockLimit;
+    private SessionBlocks session;
+    private long nextBlockId;
+    private long blockIdStep;
+    private long blockRecordCount;
+    private long recordCount;
+    private volatile IOException uploadFailure;
+
+    /**
+     * Block ids of one writer are firstBlockId, firstBlockId + blockIdStep, firstBlockId + 2 * blockIdStep ...
+     * so writers sharing one upload session never write the same block
+     *
+     * @param uploadSession        target upload session
+     * @param firstBlockId         id of the first block
+     * @param blockIdStep          step between block ids
+     * @param uploadSessionFactory factory of new upload sessions once block ids of the session are used up, fails then if null
+     * @param blockSizeController  bytes of each block before uploading it
+     * @param blockRecordLimit     max records of one block before uploading it, no limit if not positive
+     * @param compressOption       compression of blocks
+     * @param uploadThreads        count of threads uploading blocks, blocks are uploaded by the writing thread if not more than 1
+     * @param maxInflightBlocks    max count of full blocks waiting for or under uploading, bounds memory to (maxInflightBlocks + 1) * block size
+     * @param retryPolicy          retries of failed blocks
+     * @param spillDirectory       directory to keep failed blocks while retrying in pipelined mode, kept in memory if null
+     * @param metrics              metrics of the task
+     * @param memoryBudget         budget of block buffers in the JVM, not limited if null
+     * @throws IOException
+     */
+    public BlockRecordWriter(TableTunnel.UploadSession uploadSession, long firstBlockId, long blockIdStep,
+                             UploadSessionFactory uploadSessionFactory, BlockSizeController blockSizeController,
+                             long blockRecordLimit, CompressOption compressOption, int uploadThreads, int maxInflightBlocks,
+                             RetryPolicy retryPolicy, File spillDirectory, UploadMetrics metrics, MemoryBudget memoryBudget) throws IOException {
+        this.uploadSessionFactory = uploadSessionFactory;
+        startSession(uploadSession, firstBlockId, blockIdStep);
+        this.blockSizeController = blockSizeController;
+        this.blockRecordLimit = blockRecordLimit;
+        this.compressOption = compressOption;
+        this.retryPolicy = retryPolicy;
+        this.spillDirectory = spillDirectory;
+        this.metrics = metrics;
+        this.memoryBudget = memoryBudget;
+        if (uploadThreads > 1) {
+            this.uploader = Executors.newFixedThreadPool(uploadThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "maxcompute-block-uploader-" + uploaderCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.maxRecordPacks = Math.max(maxInflightBlocks, 1) + 1;
+        } else {
+            this.uploader = null;
+            this.maxRecordPacks = 1;
+        }
+        this.freeRecordPacks = new LinkedBlockingQueue<BlockRecordPack>();
+        startBlock();
+    }
+
+    @Override
+    public void write(Record record) throws IOException {
+        recordPack.append(record);
+        blockRecordCount += 1;
+        recordCount += 1;
+        if (recordPack.getTotalBytes() >= blockLimit || (blockRecordLimit > 0 && blockRecordCount >= blockRecordLimit)) {
+            flush();
+        }
+    }
+
+    /**
+     * Upload buffered records as a new block
+     * In pipelined mode, the block is handed to the uploader pool and this waits only for a free buffer
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        flush(false);
+    }
+
+    /**
+     * @param last true for the final flush on close, the buffer of a next block is not taken then
+     */
+    private void flush(boolean last) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            flushBlock(last);
+        } finally {
+            metrics.addBlockedNanos(System.nanoTime() - startTime);
+        }
+    }
+
+    private void flushBlock(boolean last) throws IOException {
+        checkUploadFailure();
+        if (blockRecordCount == 0) {
+            return;
+        }
+        if (nextBlockId >= MAX_BLOCK_ID) {
+            if (null == uploadSessionFactory) {
+                throw new IOException(String.format("Block count exceeds the limit [%s] of one upload session, increase blockBufferSize", MAX_BLOCK_ID));
+            }
+            String usedSessionId = session.uploadSession.getId();
+            startSession(uploadSessionFactory.createUploadSession(), 0, 1);
+            log.info(String.format("Block ids of upload session [%s] are used up, continue with new upload session [%s]",
+                    usedSessionId, session.uploadSession.getId()));
+        }
+        final SessionBlocks target = session;
+        final long blockId = nextBlockId;
+        final long recordCount = blockRecordCount;
+        final BlockRecordPack pack = recordPack;
+        metrics.addRawBytes(pack.getRawBytes());
+        nextBlockId += blockIdStep;
+        blockRecordCount = 0;
+        target.recordCount += recordCount;
+
+        if (uploadedBlockIds.contains(blockId)) {
+            log.info(String.format("Skipped block [%s] with record count [%s] uploaded before", blockId, recordCount));
+            target.blockIds.add(blockId);
+            pack.reset();
+            if (!last) {
+                startBlock();
+            }
+            return;
+        }
+        if (null == uploader) {
+            uploadBlock(target, blockId, pack, recordCount);
+            if (!last) {
+                startBlock();
+            }
+            return;
+        }
+        uploader.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (null == uploadFailure) {
+                        uploadBlock(target, blockId, pack, recordCount);
+                    } else {
+                        releaseRecordPack(pack);
+                    }
+                } catch (IOException e) {
+                    log.error(String.format("Failed to upload block [%s]: %s", blockId, e.getMessage()));
+                    uploadFailure = e;
+                }
+            }
+        });
+        recordPack = null;
+        if (!last) {
+            startBlock();
+        }
+    }
+
+    /**
+     * Write next blocks to the upload session, blocks uploaded by a former attempt are only known for the first session
+     */
+    private void startSession(TableTunnel.UploadSession uploadSession, long firstBlockId, long blockIdStep) {
+        session = new SessionBlocks(uploadSession, firstBlockId, blockIdStep);
+        sessions.add(session);
+        nextBlockId = firstBlockId;
+        this.blockIdStep = blockIdStep;
+        uploadedBlockIds.clear();
+    }
+
+    /**
+     * Take the buffer of the next block, the buffer is replaced if the block size has changed
+     */
+    private void startBlock() throws IOException {
+        if (null != recordPack && isResized(recordPack)) {
+            dropRecordPack(recordPack);
+            recordPack = null;
+        }
+        if (null == recordPack) {
+            recordPack = newRecordPack();
+        }
+        blockLimit = Math.min(blockSizeController.nextBlockSize(), recordPack.getBlockSize());
+    }
+
+    /**
+     * Upload one block with retries, the buffer of the block is released once it is not needed for retrying
+     */
+    private void uploadBlock(SessionBlocks target, long blockId, BlockRecordPack pack, long recordCount) throws IOException {
+        SpilledRecordPack spilledPack = null;
+        try {
+            long uploadNanos;
+            for (int retry = 0; ; retry++) {
+                long startTime = System.nanoTime();
+                try {
+                    target.uploadSession.writeBlock(blockId, null == spilledPack ? pack : spilledPack);
+                    uploadNanos = System.nanoTime() - startTime;
+                    metrics.addUploadNanos(uploadNanos);
+                    break;
+                } catch (IOException e) {
+                    metrics.addUploadNanos(System.nanoTime() - startTime);
+                    if (retry >= retryPolicy.getRetryLimit()) {
+                        throw new IOException(String.format("Failed to upload block [%s] after [%s] retries", blockId, retry), e);
+                    }
+                    log.warn(String.format("Failed to upload block [%s], will do [%s] times retry in [%s] ms: %s",
+                            blockId, retry + 1, retryPolicy.getWaitMillis(retry), e.getMessage()));
+                    metrics.addRetry();
+                    if (null == spilledPack && null != uploader && null != spillDirectory) {
+                        spilledPack = SpilledRecordPack.spill(target.uploadSession.getSchema(), pack, spillDirectory);
+                        releaseRecordPack(pack);
+                        pack = null;
+                    }
+                    retryPolicy.await(retry);
+                }
+            }
+            long bytes = null == spilledPack ? pack.getTotalBytes() : spilledPack.getTotalBytes();
+            log.info(String.format("Uploaded block [%s] with record count [%s] and bytes [%s]", blockId, recordCount, bytes));
+            target.blockIds.add(blockId);
+            metrics.addUploadedBlock(bytes);
+            blockSizeController.addSample(bytes, uploadNanos);
+            if (null != pack) {
+                releaseRecordPack(pack);
+            }
+        } finally {
+            if (null != spilledPack) {
+                spilledPack.delete();
+            }
+        }
+    }
+
+    /**
+     * Reset the buffer of an uploaded block, in pipelined mode the buffer is returned for next records
+     */
+    private void releaseRecordPack(BlockRecordPack pack) throws IOException {
+        pack.reset();
+        if (null != uploader) {
+            freeRecordPacks.offer(pack);
+        }
+    }
+
+    /**
+     * Take a free buffer, a new one is created until the buffer limit or the memory budget is reached
+     */
+    private BlockRecordPack newRecordPack() throws IOException {
+        BlockRecordPack pack = freeRecordPacks.poll();
+        try {
+            while (true) {
+                if (null != pack) {
+                    if (!isResized(pack)) {
+                        checkUploadFailure();
+                        return pack;
+                    }
+                    dropRecordPack(pack);
+                }
+                long blockSize = blockSizeController.getBlockSize();
+                if (recordPackCount < maxRecordPacks && reserveMemory(blockSize)) {
+                    recordPackCount += 1;
+                    return new BlockRecordPack(session.uploadSession.getSchema(), compressOption, blockSize, getCapacity(blockSize));
+                }
+                // Buffer of a failed block is not returned, so upload failure is checked while waiting
+                pack = freeRecordPacks.poll(1, TimeUnit.SECONDS);
+                checkUploadFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free block buffer");
+        }
+    }
+
+    /**
+     * The first buffer is needed to write anything, so it waits for the budget,
+     * more buffers are only created if the budget allows, otherwise buffers under uploading are waited for
+     */
+    private boolean reserveMemory(long blockSize) throws InterruptedIOException {
+        if (null == memoryBudget) {
+            return true;
+        }
+        long bytes = getCapacity(blockSize);
+        if (recordPackCount == 0) {
+            if (!memoryBudget.isAvailable(bytes)) {
+                log.info(String.format("Waiting for memory budget of block buffers, [%s] bytes are used", memoryBudget.getUsed()));
+            }
+            memoryBudget.acquire(bytes);
+        } else if (!memoryBudget.tryAcquire(bytes)) {
+            return false;
+        }
+        reservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Buffers are allocated at full size with a memory budget, so the reserved bytes are not exceeded by growing
+     */
+    private int getCapacity(long blockSize) {
+        if (null == memoryBudget) {
+            return 0;
+        }
+        return (int) MemoryBudget.getBufferBytes(blockSize);
+    }
+
+    private boolean isResized(BlockRecordPack pack) {
+        return Math.abs(pack.getBlockSize() - blockSizeController.getBlockSize()) * 4 > pack.getBlockSize();
+    }
+
+    private void dropRecordPack(BlockRecordPack pack) {
+        recordPackCount -= 1;
+        if (null != memoryBudget) {
+            long bytes = getCapacity(pack.getBlockSize());
+            reservedBytes -= bytes;
+            memoryBudget.release(bytes);
+        }
+    }
+
+    /**
+     * Release the memory budget of all buffers, the writer is not used any more
+     */
+    private void dropAllRecordPacks() {
+        freeRecordPacks.clear();
+        recordPack = null;
+        recordPackCount = 0;
+        if (null != memoryBudget && reservedBytes > 0) {
+            memoryBudget.release(reservedBytes);
+        }
+        reservedBytes = 0;
+    }
+
+    private void checkUploadFailure() throws IOException {
+        if (null != uploadFailure) {
+            throw uploadFailure;
+        }
+    }
+
+    /**
+     * Flush the remaining records and wait for all blocks to be uploaded,
+     * the writer keeps its uploaded block ids of each session for commit
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            closeUploads();
+        } finally {
+            releaseRecordPacks();
+        }
+    }
+
+    private void closeUploads() throws IOException {
+        flush(true);
+        if (null != uploader) {
+            uploader.shutdown();
+            long startTime = System.nanoTime();
+            try {
+                while (!uploader.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("Waiting for blocks under uploading");
+                }
+            } catch (InterruptedException e) {
+                uploader.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for blocks under uploading");
+            } finally {
+                metrics.addBlockedNanos(System.nanoTime() - startTime);
+            }
+        }
+        checkUploadFailure();
+        overwriteStaleBlocks();
+    }
+
+    /**
+     * Commit of an upload session requires all of its blocks, so blocks of a former attempt not written again
+     * are replaced by empty blocks and committed with the others
+     */
+    private void overwriteStaleBlocks() throws IOException {
+        SessionBlocks firstSession = sessions.get(0);
+        Set<Long> writtenBlockIds;
+        synchronized (firstSession.blockIds) {
+            writtenBlockIds = new HashSet<Long>(firstSession.blockIds);
+        }
+        for (Long blockId : staleBlockIds) {
+            if (writtenBlockIds.contains(blockId)) {
+                continue;
+            }
+            BlockRecordPack pack = new BlockRecordPack(firstSession.uploadSession.getSchema(), compressOption);
+            for (int retry = 0; ; retry++) {
+                try {
+                    firstSession.uploadSession.writeBlock(blockId, pack);
+                    break;
+                } catch (IOException e) {
+                    if (retry >= retryPolicy.getRetryLimit()) {
+                        throw new IOException(String.format("Failed to overwrite stale block [%s] after [%s] retries", blockId, retry), e);
+                    }
+                    log.warn(String.format("Failed to overwrite stale block [%s], will do [%s] times retry in [%s] ms: %s",
+                            blockId, retry + 1, retryPolicy.getWaitMillis(retry), e.getMessage()));
+                    metrics.addRetry();
+                    retryPolicy.await(retry);
+                }
+            }
+            log.info(String.format("Overwrote block [%s] of former attempt with an empty block", blockId));
+            firstSession.blockIds.add(blockId);
+        }
+    }
+
+    /**
+     * Stop uploading without flushing the remaining records
+     */
+    public void abort() {
+        releaseRecordPacks();
+    }
+
+    /**
+     * Release buffers once no upload could read them any more, uploads still running are stopped and waited for
+     * Buffers of uploads which do not stop are left to gc without releasing their memory budget
+     */
+    private void releaseRecordPacks() {
+        if (null != uploader && !uploader.isTerminated()) {
+            uploader.shutdownNow();
+            try {
+                if (!uploader.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Blocks under uploading did not stop, their buffers are not released to memory budget");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for blocks under uploading to stop, their buffers are not released to memory budget");
+                return;
+            }
+        }
+        dropAllRecordPacks();
+    }
+
+    /**
+     * Skip blocks uploaded by a former attempt of the same task, the input must be the same as the former attempt
+     * Blocks of other writers sharing the upload session are ignored
+     *
+     * @param uploadedBlockIds ids of blocks in the upload session
+     */
+    public void skipUploadedBlocks(Collection<Long> uploadedBlockIds) {
+        addOwnBlockIds(uploadedBlockIds, this.uploadedBlockIds);
+    }
+
+    /**
+     * Blocks of this writer found in the upload session before writing, left by a former attempt of the same task,
+     * blocks which are not written or skipped by this writer are overwritten with empty blocks on close
+     * Blocks of other writers sharing the upload session are ignored
+     *
+     * @param existingBlockIds ids of blocks in the upload session
+     */
+    public void setExistingBlockIds(Collection<Long> existingBlockIds) {
+        addOwnBlockIds(existingBlockIds, staleBlockIds);
+    }
+
+    private void addOwnBlockIds(Collection<Long> blockIds, Set<Long> ownBlockIds) {
+        SessionBlocks firstSession = sessions.get(0);
+        for (Long blockId : blockIds) {
+            if (firstSession.isOwnBlock(blockId)) {
+                ownBlockIds.add(blockId);
+            }
+        }
+    }
+
+    /**
+     * @return upload session of the next block, a later writer could continue with it
+     */
+    public TableTunnel.UploadSession getUploadSession() {
+        return session.uploadSession;
+    }
+
+    /**
+     * @return id of the next block, a later writer of the same session could start from it
+     */
+    public long getNextBlockId() {
+        return nextBlockId;
+    }
+
+    /**
+     * @return count of all records written to this writer
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @param partition partition of the upload sessions, null if the table is not partitioned
+     * @return one report for each upload session written by this writer, in order of the sessions
+     */
+    public List<UploadSessionReport> getReports(String partition) {
+        List<UploadSessionReport> reports = new ArrayList<UploadSessionReport>();
+        for (SessionBlocks sessionBlocks : sessions) {
+            Long[] blockIds;
+            synchronized (sessionBlocks.blockIds) {
+                blockIds = sessionBlocks.blockIds.toArray(new Long[sessionBlocks.blockIds.size()]);
+            }
+            reports.add(new UploadSessionReport(partition, sessionBlocks.uploadSession.getId(), blockIds, sessionBlocks.recordCount));
+        }
+        return reports;
+    }
+
+    /**
+     * Factory of upload sessions for the same table or partition
+     */
+    public interface UploadSessionFactory {
+        TableTunnel.UploadSession createUploadSession() throws IOException;
+    }
+
+    /**
+     * Blocks written to one upload session, records are counted when their block is flushed
+     */
+    private static class SessionBlocks {
+        private final TableTunnel.UploadSession uploadSession;
+        private final long firstBlockId;
+        private final long blockIdStep;
+        private final List<Long> blockIds = Collections.synchronizedList(new ArrayList<Long>());
+        private long recordCount;
+
+        SessionBlocks(TableTunnel.UploadSession uploadSession, long firstBlockId, long blockIdStep) {
+            this.uploadSession = uploadSession;
+            this.firstBlockId = firstBlockId;
+            this.blockIdStep = blockIdStep;
+        }
+
+        /**
+         * @return true if the block id is one of firstBlockId, firstBlockId + blockIdStep ... below the block id limit
+         */
+        boolean isOwnBlock(long blockId) {
+            return blockId >= firstBlockId && blockId < MAX_BLOCK_ID && (blockId - firstBlockId) % blockIdStep == 0;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+/**
+ * Block size of one task, fixed or adapted to the upload time of blocks
+ *
+ * Upload time of a block is modeled as fixed cost plus bytes divided by throughput,
+ * the fixed cost being round trips to the tunnel service. Both are estimated with a least squares fit of recent blocks,
+ * and block size is moved toward the size where fixed cost is about 10% of the upload time.
+ * High latency links get larger blocks, fast links keep small blocks to save memory.
+ * One block of each four is cut at half size as a probe, so blocks of different sizes are always measured
+ */
+public class BlockSizeController {
+
+    private static final int SAMPLE_COUNT = 16;
+    private static final int ADJUST_INTERVAL = 4;
+    private static final int PROBE_INTERVAL = 4;
+    // Fixed cost of one block at most 1 / (1 + 9) of its upload time
+    private static final double OVERHEAD_FACTOR = 9;
+
+    private final Logger log = Exec.getLogger(BlockSizeController.class);
+
+    private final long minBlockSize;
+    private final long maxBlockSize;
+    private final long[] sampleBytes = new long[SAMPLE_COUNT];
+    private final long[] sampleNanos = new long[SAMPLE_COUNT];
+    private int sampleCount;
+    private long blockCount;
+    private volatile long blockSize;
+
+    /**
+     * @param minBlockSize min bytes of one block, also the initial block size
+     * @param maxBlockSize max bytes of one block
+     */
+    public BlockSizeController(long minBlockSize, long maxBlockSize) {
+        this.maxBlockSize = Math.max(maxBlockSize, 1);
+        this.minBlockSize = Math.max(Math.min(minBlockSize, this.maxBlockSize), 1);
+        this.blockSize = this.minBlockSize;
+    }
+
+    /**
+     * @param blockSize bytes of every block
+     * @return controller keeping the block size
+     */
+    public static BlockSizeController fixed(long blockSize) {
+        return new BlockSizeController(blockSize, blockSize);
+    }
+
+    public boolean isAdaptive() {
+        return minBlockSize < maxBlockSize;
+    }
+
+    /**
+     * @return current block size, buffers are sized with it
+     */
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return bytes of the next block, half of the block size for probe blocks
+     */
+    public synchronized long nextBlockSize() {
+        blockCount += 1;
+        if (isAdaptive() && blockCount % PROBE_INTERVAL == 0) {
+            return Math.max(blockSize / 2, 1);
+        }
+        return blockSize;
+    }
+
+    /**
+     * Add the upload time of one block, called by uploader threads
+     *
+     * @param bytes uploaded bytes of the block
+     * @param nanos time of the successful upload of the block
+     */
+    public synchronized void addSample(long bytes, long nanos) {
+        if (!isAdaptive() || bytes <= 0) {
+            return;
+        }
+        sampleBytes[sampleCount % SAMPLE_COUNT] = bytes;
+        sampleNanos[sampleCount % SAMPLE_COUNT] = nanos;
+        sampleCount += 1;
+        if (sampleCount >= ADJUST_INTERVAL && sampleCount % ADJUST_INTERVAL == 0) {
+            adjust();
+        }
+    }
+
+    private void adjust() {
+        int n = Math.min(sampleCount, SAMPLE_COUNT);
+        double meanBytes = 0;
+        double meanNanos = 0;
+        for (int i = 0; i < n; i++) {
+            meanBytes += sampleBytes[i];
+            meanNanos += sampleNanos[i];
+        }
+        meanBytes /= n;
+        meanNanos /= n;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < n; i++) {
+            covariance += (sampleBytes[i] - meanBytes) * (sampleNanos[i] - meanNanos);
+            variance += (sampleBytes[i] - meanBytes) * (sampleBytes[i] - meanBytes);
+        }
+        if (variance <= 0) {
+            return;
+        }
+        double nanosPerByte = covariance / variance;
+        double fixedNanos = meanNanos - nanosPerByte * meanBytes;
+        long target;
+        if (nanosPerByte <= 0) {
+            // Upload time does not grow with bytes, so fixed cost dominates
+            target = blockSize * 2;
+        } else if (fixedNanos <= 0) {
+            // No visible fixed cost, smaller blocks save memory
+            target = blockSize / 2;
+        } else {
+            target = (long) Math.min(OVERHEAD_FACTOR * fixedNanos / nanosPerByte, Long.MAX_VALUE / 2);
+        }
+        // Move at most twice or half at once, so one noisy fit does not swing the size
+        long newBlockSize = Math.max(Math.min(target, blockSize * 2), blockSize / 2);
+        newBlockSize = Math.max(Math.min(newBlockSize, maxBlockSize), minBlockSize);
+        // Changes within 25% are ignored, they would only drop buffers
+        if (Math.abs(newBlockSize - blockSize) * 4 > blockSize) {
+            log.info(String.format("Changed block size from [%s] to [%s] bytes with estimated fixed cost [%.1f] ms and throughput [%.0f] bytes/s of one block",
+                    blockSize, newBlockSize, Math.max(fixedNanos, 0) / 1e6, nanosPerByte > 0 ? 1e9 / nanosPerByte : 0));
+            blockSize = newBlockSize;
+        }
+    }
+}
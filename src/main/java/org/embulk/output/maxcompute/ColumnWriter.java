@@ -0,0 +1,479 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.data.Record;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.*;
+import org.msgpack.value.Value;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer of one input column bound to the index of its target ODPS column
+ * Input schema is compiled into writers once per task, so the per record loop only calls record.set with column index
+ * Writers are chosen by input type and target column type, so values are converted to the target type while loading
+ * instead of casting them with SQL after loading
+ *
+ * Writers keep per column state to avoid allocation per cell, the record must be appended to a block
+ * before the next record is written, or copied with copyRecord
+ */
+public abstract class ColumnWriter {
+
+    protected final Column column;
+    protected final int index;
+
+    protected ColumnWriter(Column column, int index) {
+        this.column = column;
+        this.index = index;
+    }
+
+    /**
+     * Copy the value of current record in page reader to target record
+     *
+     * @param reader page reader pointing to current record
+     * @param record target odps record
+     */
+    public void write(PageReader reader, Record record) {
+        if (reader.isNull(column)) {
+            record.set(index, null);
+        } else {
+            writeValue(reader, record);
+        }
+    }
+
+    protected abstract void writeValue(PageReader reader, Record record);
+
+    /**
+     * Compile input schema into column writers bound to target table columns
+     *
+     * @param schema      input schema
+     * @param tableSchema target table schema
+     * @param mappings    column name mappings, could be null
+     * @return column writers in input column order
+     */
+    public static ColumnWriter[] compile(Schema schema, TableSchema tableSchema, Map<String, String> mappings) {
+        List<ColumnWriter> writers = new ArrayList<ColumnWriter>();
+        for (Column column : schema.getColumns()) {
+            // Data Format https://github.com/alibaba/DataX/blob/master/odpswriter/doc/odpswriter.md
+            Type type = column.getType();
+            String name = null != mappings && mappings.containsKey(column.getName()) ? mappings.get(column.getName()) : column.getName();
+            if (!tableSchema.containsColumn(name)) {
+                if (type instanceof JsonType) {
+                    // Json columns were always skipped, so they are only loaded to existing columns
+                    continue;
+                }
+                throw new UnsupportedOperationException(String.format("No such column [%s] in target table for input column [%s]", name, column.getName()));
+            }
+            int index = tableSchema.getColumnIndex(name);
+            com.aliyun.odps.Column target = tableSchema.getColumn(index);
+            ColumnWriter writer = newColumnWriter(column, index, target);
+            if (null == writer) {
+                throw new UnsupportedOperationException(String.format("Could not load input column [%s] of type [%s] to column [%s] of type [%s]",
+                        column.getName(), type, name, formatType(target)));
+            }
+            writers.add(writer);
+        }
+        return writers.toArray(new ColumnWriter[writers.size()]);
+    }
+
+    /**
+     * @param column input column
+     * @param index  index of target column
+     * @param target target column
+     * @return writer converting input type to target type, null if not supported
+     */
+    private static ColumnWriter newColumnWriter(Column column, int index, com.aliyun.odps.Column target) {
+        Type type = column.getType();
+        OdpsType odpsType = target.getType();
+        if (type instanceof StringType) {
+            switch (odpsType) {
+                case STRING:
+                    return new StringColumnWriter(column, index);
+                case BIGINT:
+                case DOUBLE:
+                case BOOLEAN:
+                case DECIMAL:
+                    return new ParsedStringColumnWriter(column, index, odpsType);
+                default:
+                    return null;
+            }
+        } else if (type instanceof BooleanType) {
+            switch (odpsType) {
+                case BOOLEAN:
+                    return new BooleanColumnWriter(column, index);
+                case BIGINT:
+                case STRING:
+                    return new ConvertedBooleanColumnWriter(column, index, odpsType);
+                default:
+                    return null;
+            }
+        } else if (type instanceof LongType) {
+            switch (odpsType) {
+                case BIGINT:
+                    return new LongColumnWriter(column, index);
+                case DOUBLE:
+                case DECIMAL:
+                case STRING:
+                    return new ConvertedLongColumnWriter(column, index, odpsType);
+                default:
+                    return null;
+            }
+        } else if (type instanceof DoubleType) {
+            switch (odpsType) {
+                case DOUBLE:
+                    return new DoubleColumnWriter(column, index);
+                case DECIMAL:
+                case STRING:
+                    return new ConvertedDoubleColumnWriter(column, index, odpsType);
+                default:
+                    return null;
+            }
+        } else if (type instanceof TimestampType) {
+            return OdpsType.DATETIME == odpsType ? new TimestampColumnWriter(column, index) : null;
+        } else if (type instanceof JsonType) {
+            switch (odpsType) {
+                case STRING:
+                    return new JsonColumnWriter(column, index, odpsType, null);
+                case ARRAY:
+                case MAP:
+                    List<OdpsType> elementTypes = target.getGenericTypeList();
+                    if (null == elementTypes || elementTypes.size() != (OdpsType.ARRAY == odpsType ? 1 : 2)) {
+                        return null;
+                    }
+                    for (OdpsType elementType : elementTypes) {
+                        if (!isJsonElementType(elementType)) {
+                            return null;
+                        }
+                    }
+                    return new JsonColumnWriter(column, index, odpsType, elementTypes.toArray(new OdpsType[elementTypes.size()]));
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isJsonElementType(OdpsType type) {
+        return OdpsType.BIGINT == type || OdpsType.DOUBLE == type || OdpsType.BOOLEAN == type || OdpsType.STRING == type;
+    }
+
+    private static String formatType(com.aliyun.odps.Column target) {
+        List<OdpsType> elementTypes = target.getGenericTypeList();
+        if (null == elementTypes || elementTypes.isEmpty()) {
+            return target.getType().toString();
+        }
+        return String.format("%s%s", target.getType(), elementTypes);
+    }
+
+    private static UnsupportedOperationException conversionError(Column column, Object value, OdpsType type, Exception cause) {
+        return new UnsupportedOperationException(String.format("Failed to convert value [%s] of input column [%s] to [%s]",
+                value, column.getName(), type), cause);
+    }
+
+    /**
+     * Copy a record written by column writers, values shared between records by the writers are copied
+     *
+     * @param record record written by column writers
+     * @return record kept after next records are written
+     */
+    public static Record copyRecord(Record record) {
+        Record copy = record.clone();
+        for (int i = 0; i < copy.getColumnCount(); i++) {
+            Object value = copy.get(i);
+            if (value instanceof Date) {
+                copy.setDatetime(i, new Date(((Date) value).getTime()));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Strings are set as UTF-8 bytes, so the block writer does not encode them again
+     * Bytes of recent short values are cached by hash, repeated values such as event names, countries or devices
+     * are encoded once, the cache is turned off for the column if values rarely repeat in the first records
+     */
+    static final class StringColumnWriter extends ColumnWriter {
+        private static final int CACHE_SIZE = 64;
+        private static final int MAX_CACHED_LENGTH = 128;
+        private static final int SAMPLE_SIZE = 4096;
+
+        private String[] cachedValues = new String[CACHE_SIZE];
+        private byte[][] cachedBytes = new byte[CACHE_SIZE][];
+        private int lookups;
+        private int hits;
+
+        StringColumnWriter(Column column, int index) {
+            super(column, index);
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            String value = reader.getString(column);
+            if (null == cachedValues || value.length() > MAX_CACHED_LENGTH) {
+                // Long values are encoded by the block writer as before, it checks the 8M limit of a string with length only
+                record.setString(index, value);
+            } else {
+                record.setString(index, encode(value));
+            }
+        }
+
+        private byte[] encode(String value) {
+            int slot = value.hashCode() & (CACHE_SIZE - 1);
+            String cachedValue = cachedValues[slot];
+            byte[] bytes;
+            if (value == cachedValue || value.equals(cachedValue)) {
+                bytes = cachedBytes[slot];
+                hits += 1;
+            } else {
+                bytes = value.getBytes(StandardCharsets.UTF_8);
+                cachedValues[slot] = value;
+                cachedBytes[slot] = bytes;
+            }
+            lookups += 1;
+            if (lookups == SAMPLE_SIZE && hits < SAMPLE_SIZE / 4) {
+                cachedValues = null;
+                cachedBytes = null;
+            }
+            return bytes;
+        }
+    }
+
+    static final class BooleanColumnWriter extends ColumnWriter {
+        BooleanColumnWriter(Column column, int index) {
+            super(column, index);
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            record.setBoolean(index, reader.getBoolean(column));
+        }
+    }
+
+    static final class LongColumnWriter extends ColumnWriter {
+        LongColumnWriter(Column column, int index) {
+            super(column, index);
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            long value = reader.getLong(column);
+            try {
+                record.setBigint(index, value);
+            } catch (IllegalArgumentException e) {
+                // Long.MIN_VALUE is out of range of BIGINT
+                throw conversionError(column, value, OdpsType.BIGINT, e);
+            }
+        }
+    }
+
+    static final class DoubleColumnWriter extends ColumnWriter {
+        DoubleColumnWriter(Column column, int index) {
+            super(column, index);
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            record.setDouble(index, reader.getDouble(column));
+        }
+    }
+
+    /**
+     * One date is set to records of the column, the block writer reads it only while the record is appended
+     */
+    static final class TimestampColumnWriter extends ColumnWriter {
+        private final Date date = new Date(0);
+
+        TimestampColumnWriter(Column column, int index) {
+            super(column, index);
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            Timestamp timestamp = reader.getTimestamp(column);
+            date.setTime(timestamp.toEpochMilli());
+            record.setDatetime(index, date);
+        }
+    }
+
+    /**
+     * Strings of numbers and booleans loaded to typed columns, empty strings are loaded as null
+     */
+    static final class ParsedStringColumnWriter extends ColumnWriter {
+        private final OdpsType type;
+
+        ParsedStringColumnWriter(Column column, int index, OdpsType type) {
+            super(column, index);
+            this.type = type;
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            String value = reader.getString(column).trim();
+            if (value.isEmpty()) {
+                record.set(index, null);
+                return;
+            }
+            try {
+                switch (type) {
+                    case BIGINT:
+                        record.setBigint(index, Long.parseLong(value));
+                        break;
+                    case DOUBLE:
+                        record.setDouble(index, Double.parseDouble(value));
+                        break;
+                    case DECIMAL:
+                        record.setDecimal(index, new BigDecimal(value));
+                        break;
+                    default:
+                        if ("true".equalsIgnoreCase(value)) {
+                            record.setBoolean(index, true);
+                        } else if ("false".equalsIgnoreCase(value)) {
+                            record.setBoolean(index, false);
+                        } else {
+                            throw new IllegalArgumentException("Boolean must be true or false");
+                        }
+                }
+            } catch (IllegalArgumentException e) {
+                throw conversionError(column, value, type, e);
+            }
+        }
+    }
+
+    static final class ConvertedBooleanColumnWriter extends ColumnWriter {
+        private final OdpsType type;
+
+        ConvertedBooleanColumnWriter(Column column, int index, OdpsType type) {
+            super(column, index);
+            this.type = type;
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            boolean value = reader.getBoolean(column);
+            if (OdpsType.BIGINT == type) {
+                record.setBigint(index, value ? 1L : 0L);
+            } else {
+                record.setString(index, Boolean.toString(value));
+            }
+        }
+    }
+
+    static final class ConvertedLongColumnWriter extends ColumnWriter {
+        private final OdpsType type;
+
+        ConvertedLongColumnWriter(Column column, int index, OdpsType type) {
+            super(column, index);
+            this.type = type;
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            long value = reader.getLong(column);
+            switch (type) {
+                case DOUBLE:
+                    record.setDouble(index, (double) value);
+                    break;
+                case DECIMAL:
+                    try {
+                        record.setDecimal(index, BigDecimal.valueOf(value));
+                    } catch (IllegalArgumentException e) {
+                        throw conversionError(column, value, type, e);
+                    }
+                    break;
+                default:
+                    record.setString(index, Long.toString(value));
+            }
+        }
+    }
+
+    static final class ConvertedDoubleColumnWriter extends ColumnWriter {
+        private final OdpsType type;
+
+        ConvertedDoubleColumnWriter(Column column, int index, OdpsType type) {
+            super(column, index);
+            this.type = type;
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            double value = reader.getDouble(column);
+            if (OdpsType.DECIMAL == type) {
+                try {
+                    // NaN and infinity could not be a decimal
+                    record.setDecimal(index, BigDecimal.valueOf(value));
+                } catch (IllegalArgumentException e) {
+                    throw conversionError(column, value, type, e);
+                }
+            } else {
+                record.setString(index, Double.toString(value));
+            }
+        }
+    }
+
+    /**
+     * Json loaded to string as json text, arrays to array column and objects to map column,
+     * elements are converted to element types of the column, strings of json are set as UTF-8 bytes
+     */
+    static final class JsonColumnWriter extends ColumnWriter {
+        private final OdpsType type;
+        private final OdpsType[] elementTypes;
+
+        JsonColumnWriter(Column column, int index, OdpsType type, OdpsType[] elementTypes) {
+            super(column, index);
+            this.type = type;
+            this.elementTypes = elementTypes;
+        }
+
+        @Override
+        protected void writeValue(PageReader reader, Record record) {
+            Value value = reader.getJson(column);
+            if (OdpsType.STRING == type) {
+                record.setString(index, value.toJson().getBytes(StandardCharsets.UTF_8));
+            } else if (OdpsType.ARRAY == type && value.isArrayValue()) {
+                List<Object> list = new ArrayList<Object>(value.asArrayValue().size());
+                for (Value element : value.asArrayValue()) {
+                    list.add(toElement(element, elementTypes[0]));
+                }
+                record.set(index, list);
+            } else if (OdpsType.MAP == type && value.isMapValue()) {
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+                for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                    map.put(toElement(entry.getKey(), elementTypes[0]), toElement(entry.getValue(), elementTypes[1]));
+                }
+                record.set(index, map);
+            } else {
+                throw conversionError(column, value.toJson(), type, null);
+            }
+        }
+
+        private Object toElement(Value value, OdpsType elementType) {
+            if (value.isNilValue()) {
+                return null;
+            }
+            try {
+                switch (elementType) {
+                    case BIGINT:
+                        return value.isStringValue() ? Long.parseLong(value.asStringValue().asString()) : value.asIntegerValue().asLong();
+                    case DOUBLE:
+                        return value.isStringValue() ? Double.parseDouble(value.asStringValue().asString()) : value.asNumberValue().toDouble();
+                    case BOOLEAN:
+                        return value.asBooleanValue().getBoolean();
+                    default:
+                        return value.isStringValue() ? value.asStringValue().asByteArray() : value.toJson().getBytes(StandardCharsets.UTF_8);
+                }
+            } catch (RuntimeException e) {
+                throw conversionError(column, value.toJson(), elementType, e);
+            }
+        }
+    }
+}
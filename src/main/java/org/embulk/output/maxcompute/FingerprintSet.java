@@ -0,0 +1,248 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of 64-bit fingerprints bounded in memory
+ *
+ * Fingerprints are kept in an open addressing table of primitive longs, grown up to the memory limit.
+ * When the table is full, its fingerprints are sorted and spilled to a run file, which is memory mapped
+ * and binary searched for the following fingerprints, and the table is cleared.
+ * Runs are merged into one when there are too many of them, so a lookup searches a few runs at most
+ */
+public class FingerprintSet implements Closeable {
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MAX_RUNS = 8;
+    // 0 marks empty slots, so fingerprint 0 is kept as another value
+    private static final long ZERO_FINGERPRINT = 0x9e3779b97f4a7c15L;
+
+    private final Logger log = Exec.getLogger(FingerprintSet.class);
+
+    private final int maxCapacity;
+    private final File spillDirectory;
+    private final List<Run> runs = new ArrayList<Run>();
+    private long[] table;
+    private int size;
+    private long spilledSize;
+
+    /**
+     * @param memoryBytes    max bytes of the table in memory
+     * @param spillDirectory directory of run files, temporary directory if null
+     */
+    public FingerprintSet(long memoryBytes, File spillDirectory) {
+        this.maxCapacity = (int) Math.min(Long.highestOneBit(Math.max(memoryBytes / 8, INITIAL_CAPACITY)), MAX_CAPACITY);
+        this.spillDirectory = spillDirectory;
+        this.table = new long[Math.min(INITIAL_CAPACITY, maxCapacity)];
+    }
+
+    /**
+     * @param fingerprint fingerprint to add
+     * @return true if the fingerprint is added, false if it was in the set
+     * @throws IOException
+     */
+    public boolean add(long fingerprint) throws IOException {
+        if (fingerprint == 0) {
+            fingerprint = ZERO_FINGERPRINT;
+        }
+        int slot = findSlot(table, fingerprint);
+        if (table[slot] == fingerprint) {
+            return false;
+        }
+        for (Run run : runs) {
+            if (run.contains(fingerprint)) {
+                return false;
+            }
+        }
+        table[slot] = fingerprint;
+        size += 1;
+        // Load factor of at most 3/4
+        if (size > table.length - (table.length >>> 2)) {
+            if (table.length < maxCapacity) {
+                grow();
+            } else {
+                spill();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return count of fingerprints in memory and in run files
+     */
+    public long size() {
+        return size + spilledSize;
+    }
+
+    /**
+     * @return count of run files
+     */
+    public int getRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Delete run files and release the table
+     */
+    @Override
+    public void close() {
+        for (Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        table = new long[0];
+        size = 0;
+        spilledSize = 0;
+    }
+
+    private static int findSlot(long[] table, long fingerprint) {
+        int mask = table.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (table[slot] != 0 && table[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] newTable = new long[table.length * 2];
+        for (long fingerprint : table) {
+            if (fingerprint != 0) {
+                newTable[findSlot(newTable, fingerprint)] = fingerprint;
+            }
+        }
+        table = newTable;
+    }
+
+    private void spill() throws IOException {
+        // The table is reused to sort its fingerprints, so no more memory is needed to spill
+        int n = 0;
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] != 0) {
+                table[n++] = table[i];
+            }
+        }
+        Arrays.sort(table, 0, n);
+        File file = File.createTempFile("maxcompute-dedup-", ".run", spillDirectory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            for (int i = 0; i < n; i++) {
+                out.writeLong(table[i]);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        Arrays.fill(table, 0);
+        size = 0;
+        spilledSize += n;
+        runs.add(new Run(file, n));
+        log.info(String.format("Spilled [%s] fingerprints to run file [%s], [%s] fingerprints in [%s] runs", n, file, spilledSize, runs.size()));
+        if (runs.size() > MAX_RUNS) {
+            mergeRuns();
+        }
+    }
+
+    private void mergeRuns() throws IOException {
+        File file = File.createTempFile("maxcompute-dedup-", ".run", spillDirectory);
+        long[] positions = new long[runs.size()];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            // Fingerprints are unique in all runs, so the merge only orders them
+            while (true) {
+                int min = -1;
+                for (int i = 0; i < runs.size(); i++) {
+                    if (positions[i] < runs.get(i).size
+                            && (min < 0 || runs.get(i).get(positions[i]) < runs.get(min).get(positions[min]))) {
+                        min = i;
+                    }
+                }
+                if (min < 0) {
+                    break;
+                }
+                out.writeLong(runs.get(min).get(positions[min]));
+                positions[min] += 1;
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        for (Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        runs.add(new Run(file, spilledSize));
+        log.info(String.format("Merged runs into run file [%s] of [%s] fingerprints", file, spilledSize));
+    }
+
+    /**
+     * Sorted fingerprints in a memory mapped file, mapped in segments as one mapping is limited to 2 GB
+     */
+    private static class Run {
+
+        private static final int SEGMENT_SHIFT = 27;
+        private static final long SEGMENT_LONGS = 1L << SEGMENT_SHIFT;
+
+        private final File file;
+        private final long size;
+        private MappedByteBuffer[] segments;
+
+        Run(File file, long size) throws IOException {
+            this.file = file;
+            this.size = size;
+            this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_LONGS - 1) >>> SEGMENT_SHIFT)];
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = randomAccessFile.getChannel()) {
+                for (int i = 0; i < segments.length; i++) {
+                    long offset = i * SEGMENT_LONGS;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset * 8, Math.min(SEGMENT_LONGS, size - offset) * 8);
+                }
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+        }
+
+        long get(long index) {
+            return segments[(int) (index >>> SEGMENT_SHIFT)].getLong((int) (index & (SEGMENT_LONGS - 1)) << 3);
+        }
+
+        boolean contains(long fingerprint) {
+            long low = 0;
+            long high = size - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                long value = get(middle);
+                if (value < fingerprint) {
+                    low = middle + 1;
+                } else if (value > fingerprint) {
+                    high = middle - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void delete() {
+            // Mapped segments are released by gc, the file is removed once they are unmapped on platforms locking mapped files
+            segments = null;
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -3,27 +3,52 @@ package org.embulk.output.maxcompute;
 import com.aliyun.odps.Odps;
 import com.aliyun.odps.OdpsException;
 import com.aliyun.odps.PartitionSpec;
+import com.aliyun.odps.Table;
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.commons.GeneralConfiguration;
 import com.aliyun.odps.account.Account;
 import com.aliyun.odps.account.AliyunAccount;
-import com.aliyun.odps.commons.util.RetryStrategy;
+import com.aliyun.odps.data.ArrayRecord;
 import com.aliyun.odps.data.Record;
 import com.aliyun.odps.tunnel.TableTunnel;
 import com.aliyun.odps.tunnel.TunnelException;
-import com.aliyun.odps.tunnel.io.TunnelBufferedWriter;
+import com.aliyun.odps.tunnel.io.CompressOption;
 import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
 import org.embulk.config.*;
 import org.embulk.spi.*;
-import org.embulk.spi.time.Timestamp;
-import org.embulk.spi.type.*;
 import org.slf4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class MaxcomputeOutputPlugin
         implements OutputPlugin {
+
+    private final Logger log = Exec.getLogger(MaxcomputeOutputPlugin.class);
+
+    // Clients are shared by tasks in the same JVM with the same settings, so HTTP connections are reused across tasks,
+    // they are keyed by a hash of the settings not to keep the secret in keys, and dropped when the job finishes
+    private static final ConcurrentMap<String, Odps> odpsClients = new ConcurrentHashMap<String, Odps>();
+    private static final ConcurrentMap<String, TableTunnel> tableTunnels = new ConcurrentHashMap<String, TableTunnel>();
+    // Upload sessions committed together, one session of each partition of each task with partitionColumns
+    private static final int MAX_COMMIT_THREADS = 16;
+
     public interface PluginTask
             extends Task {
         @Config("accessKeyId")
@@ -37,9 +62,17 @@ public class MaxcomputeOutputPlugin
         public Optional<String> getOdpsUrl();
 
         @Config("tunnelUrl")
-        @ConfigDefault("\"http://dt.ap-northeast-1.maxcompute.aliyun.com\"")
+        @ConfigDefault("null")
         public Optional<String> getTunnelUrl();
 
+        @Config("connectTimeout")
+        @ConfigDefault("null")
+        public Optional<Integer> getConnectTimeout();
+
+        @Config("readTimeout")
+        @ConfigDefault("null")
+        public Optional<Integer> getReadTimeout();
+
         @Config("projectName")
         public String getProjectName();
 
@@ -54,9 +87,131 @@ public class MaxcomputeOutputPlugin
         @ConfigDefault("false")
         public boolean getOverwrite();
 
+        @Config("overwriteMode")
+        @ConfigDefault("\"truncate\"")
+        public String getOverwriteMode();
+
+        @Config("mode")
+        @ConfigDefault("\"append\"")
+        public String getMode();
+
+        @Config("mergeKeys")
+        @ConfigDefault("[]")
+        public List<String> getMergeKeys();
+
+        @Config("mergeOrderColumn")
+        @ConfigDefault("null")
+        public Optional<String> getMergeOrderColumn();
+
         @Config("mappings")
         @ConfigDefault("{}")
         public Optional<Map<String, String>> getMappings();
+
+        @Config("blockBufferSize")
+        @ConfigDefault("67108864")
+        public long getBlockBufferSize();
+
+        @Config("adaptiveBlockSize")
+        @ConfigDefault("false")
+        public boolean getAdaptiveBlockSize();
+
+        @Config("minBlockBufferSize")
+        @ConfigDefault("4194304")
+        public long getMinBlockBufferSize();
+
+        @Config("memoryBudget")
+        @ConfigDefault("null")
+        public Optional<Long> getMemoryBudget();
+
+        @Config("blockRecordLimit")
+        @ConfigDefault("null")
+        public Optional<Long> getBlockRecordLimit();
+
+        @Config("uploadThreads")
+        @ConfigDefault("1")
+        public int getUploadThreads();
+
+        @Config("maxInflightBlocks")
+        @ConfigDefault("2")
+        public int getMaxInflightBlocks();
+
+        @Config("compression")
+        @ConfigDefault("\"none\"")
+        public String getCompression();
+
+        @Config("compressionLevel")
+        @ConfigDefault("1")
+        public int getCompressionLevel();
+
+        @Config("retryLimit")
+        @ConfigDefault("6")
+        public int getRetryLimit();
+
+        @Config("retryWaitMillis")
+        @ConfigDefault("4000")
+        public long getRetryWaitMillis();
+
+        @Config("maxRetryWaitMillis")
+        @ConfigDefault("128000")
+        public long getMaxRetryWaitMillis();
+
+        @Config("spillDirectory")
+        @ConfigDefault("null")
+        public Optional<String> getSpillDirectory();
+
+        @Config("jmxMetrics")
+        @ConfigDefault("false")
+        public boolean getJmxMetrics();
+
+        @Config("skipUploadedBlocks")
+        @ConfigDefault("false")
+        public boolean getSkipUploadedBlocks();
+
+        @Config("partitionColumns")
+        @ConfigDefault("[]")
+        public List<PartitionColumnTask> getPartitionColumns();
+
+        @Config("maxOpenPartitions")
+        @ConfigDefault("8")
+        public int getMaxOpenPartitions();
+
+        @Config("dedupKeys")
+        @ConfigDefault("[]")
+        public List<String> getDedupKeys();
+
+        @Config("dedupMemory")
+        @ConfigDefault("67108864")
+        public long getDedupMemory();
+
+        public String getUploadSessionId();
+
+        public void setUploadSessionId(String uploadSessionId);
+
+        public int getTaskCount();
+
+        public void setTaskCount(int taskCount);
+
+        public String getStagingTableName();
+
+        public void setStagingTableName(String stagingTableName);
+    }
+
+    public interface PartitionColumnTask
+            extends Task {
+        @Config("name")
+        public String getName();
+
+        @Config("column")
+        @ConfigDefault("null")
+        public Optional<String> getColumn();
+
+        @Config("format")
+        @ConfigDefault("\"yyyyMMdd\"")
+        public String getFormat();
+
+        @Config("timezone")
+        @ConfigDefault("\"UTC\"")
+        public String getTimezone();
     }
 
     public class MaxcomputePageOutput implements TransactionalPageOutput {
@@ -66,129 +221,111 @@ public class MaxcomputeOutputPlugin
         private PageReader pageReader;
         private PluginTask task;
         private Schema schema;
-        private TunnelBufferedWriter recordWriter;
+        private BlockRecordWriter recordWriter;
+        private PartitionRouter partitionRouter;
+        private Record record;
+        private ColumnWriter[] columnWriters;
         private Odps odps;
         private TableTunnel.UploadSession uploadSession;
-        private RetryStrategy retryStrategy;
         private Map<String, String> mappings;
+        private final UploadMetrics metrics = new UploadMetrics();
+        private final long startTime = System.nanoTime();
+        private BlockSizeController blockSizeController;
+        private MemoryBudget memoryBudget;
+        private RecordDeduplicator deduplicator;
 
 
-        public MaxcomputePageOutput(PluginTask task, Schema schema) {
+        public MaxcomputePageOutput(PluginTask task, Schema schema, int taskIndex) {
             this.pageReader = new PageReader(schema);
             this.task = task;
             this.schema = schema;
             this.mappings = task.getMappings().isPresent()? task.getMappings().get() : null;
             this.odps = generateOdpsClient(task);
-            this.taskInit();
-            this.uploadSession = generateTableUploadSession(odps, task);
-            this.retryStrategy = new RetryStrategy(6, 4, RetryStrategy.BackoffStrategy.EXPONENTIAL_BACKOFF);
-        }
-
-        private Odps generateOdpsClient(PluginTask task) {
-            if (task.getOdpsUrl().isPresent() && !task.getAccessKeyID().isEmpty() && !task.getAccessKeySecret().isEmpty() && !task.getProjectName().isEmpty()) {
-                Account account = new AliyunAccount(task.getAccessKeyID(), task.getAccessKeySecret());
-                Odps odps = new Odps(account);
-                odps.setEndpoint(task.getOdpsUrl().get());
-                odps.setDefaultProject(task.getProjectName());
-                return odps;
-            } else {
-                throw new UnsupportedOperationException("Less parameters for maxcompute output plugin to create ODPS client");
+            if (task.getJmxMetrics()) {
+                UploadMetrics.registerMBean();
             }
-        }
-
-        private TableTunnel.UploadSession generateTableUploadSession(Odps odps, PluginTask task) {
-            if (null != odps && task.getTunnelUrl().isPresent()) {
-                try {
-                    TableTunnel tableTunnel = new TableTunnel(odps);
-                    TableTunnel.UploadSession uploadSession;
-                    if (!task.getPartition().isPresent()) {
-                        log.info("Running with no partition mode");
-                        uploadSession = tableTunnel.createUploadSession(task.getProjectName(), task.getTableName());
-                    } else {
-                        log.info(String.format("Running with partition mode as : [%s]", task.getPartition().get()));
-                        PartitionSpec partitionSpec = new PartitionSpec(task.getPartition().get());
-                        uploadSession = tableTunnel.createUploadSession(task.getProjectName(), task.getTableName(), partitionSpec);
+            this.blockSizeController = generateBlockSizeController(task);
+            this.memoryBudget = task.getMemoryBudget().isPresent() ? MemoryBudget.global(task.getMemoryBudget().get()) : null;
+            if (!task.getDedupKeys().isEmpty()) {
+                this.deduplicator = new RecordDeduplicator(RecordDeduplicator.compileKeys(task.getDedupKeys(), schema),
+                        task.getDedupMemory(), generateSpillDirectory(task));
+            }
+            if (task.getPartitionColumns().isEmpty()) {
+                long sessionStartTime = System.nanoTime();
+                this.uploadSession = generateTableUploadSession(odps, task, task.getPartition().orNull(), task.getUploadSessionId());
+                metrics.addSession(System.nanoTime() - sessionStartTime);
+                this.recordWriter = generateRecordWriter(uploadSession, task, taskIndex);
+                List<Long> uploadedBlockIds = getUploadedBlockIds();
+                if (!uploadedBlockIds.isEmpty()) {
+                    log.info(String.format("Found [%s] blocks uploaded by former attempts in upload session [%s]", uploadedBlockIds.size(), uploadSession.getId()));
+                    // Blocks of the former attempt of this task are either skipped or written again, the others are overwritten on close
+                    recordWriter.setExistingBlockIds(uploadedBlockIds);
+                    if (task.getSkipUploadedBlocks()) {
+                        recordWriter.skipUploadedBlocks(uploadedBlockIds);
                     }
-                    return uploadSession;
-                } catch (TunnelException e) {
-                    log.error(e.getErrorMsg());
-                    throw new UnsupportedOperationException("Failed to create table tunnel session");
                 }
+                this.record = uploadSession.newRecord();
+                this.columnWriters = ColumnWriter.compile(schema, uploadSession.getSchema(), mappings);
             } else {
-                throw new UnsupportedOperationException("Less parameters for maxcompute output plugin to create table tunnel session");
+                // Upload sessions are created for each partition found in input, so columns are resolved with table schema
+                TableSchema tableSchema = odps.tables().get(task.getProjectName(), getUploadTableName(task)).getSchema();
+                this.partitionRouter = new PartitionRouter(odps, generateTableTunnel(odps, task), task.getProjectName(), getUploadTableName(task),
+                        PartitionColumn.compile(task.getPartitionColumns(), schema), blockSizeController,
+                        task.getBlockRecordLimit().isPresent() ? task.getBlockRecordLimit().get() : 0,
+                        generateCompressOption(task), task.getUploadThreads(), task.getMaxInflightBlocks(), generateRetryPolicy(task),
+                        generateSpillDirectory(task), task.getMaxOpenPartitions(), metrics, memoryBudget);
+                List<com.aliyun.odps.Column> columns = tableSchema.getColumns();
+                this.record = new ArrayRecord(columns.toArray(new com.aliyun.odps.Column[columns.size()]));
+                this.columnWriters = ColumnWriter.compile(schema, tableSchema, mappings);
             }
         }
 
-        private void taskInit() {
+        private BlockRecordWriter generateRecordWriter(TableTunnel.UploadSession uploadSession, final PluginTask task, int taskIndex) {
             try {
-                // Check target table exists or not
-                if (OdpsUtil.isTableExist(odps, task.getProjectName(), task.getTableName())) {
-                    log.info(String.format("Target table [%s] in project [%s] exists!", task.getTableName(), task.getProjectName()));
-                } else {
-                    throw new UnsupportedOperationException(String.format("Target table [%s] in project [%s] does not exists!", task.getTableName(), task.getProjectName()));
-                }
-
-                // Check table overwrite configuration
-                if (!task.getOverwrite()) {
-                    log.info("No need to clear data before running data!");
-                } else {
-                    if (!task.getPartition().isPresent()) {
-                        log.info(String.format("Clear data with non-partition table [%s] of project [%s]", task.getTableName(), task.getProjectName()));
-                        OdpsUtil.truncateNonePartitionTable(odps, task.getProjectName(), task.getTableName());
-                    } else {
-                        log.info(String.format("Clear data in partition [%s] with table [%s] of project [%s]", task.getPartition().get(), task.getTableName(), task.getProjectName()));
-                        OdpsUtil.dropPartition(odps, task.getProjectName(), task.getTableName(), task.getPartition().get());
+                long blockRecordLimit = task.getBlockRecordLimit().isPresent() ? task.getBlockRecordLimit().get() : 0;
+                // Tasks share one upload session, so each task takes block ids of taskIndex + n * taskCount,
+                // a task using up its block ids continues with an upload session of its own, committed with the shared one
+                BlockRecordWriter.UploadSessionFactory uploadSessionFactory = new BlockRecordWriter.UploadSessionFactory() {
+                    @Override
+                    public TableTunnel.UploadSession createUploadSession() {
+                        long sessionStartTime = System.nanoTime();
+                        TableTunnel.UploadSession uploadSession = generateTableUploadSession(odps, task, task.getPartition().orNull(), null);
+                        metrics.addSession(System.nanoTime() - sessionStartTime);
+                        return uploadSession;
                     }
-                }
-
-                // Check table partition configuration
-                if (!task.getPartition().isPresent()) {
-                    log.info(String.format("No need check partition configuration of table [%s] in project [%s]!", task.getTableName(), task.getProjectName()));
-                } else {
-                    partitionTableInit();
-                }
-            } catch (OdpsException e) {
+                };
+                return new BlockRecordWriter(uploadSession, taskIndex, task.getTaskCount(), uploadSessionFactory, blockSizeController,
+                        blockRecordLimit, generateCompressOption(task), task.getUploadThreads(), task.getMaxInflightBlocks(),
+                        generateRetryPolicy(task), generateSpillDirectory(task), metrics, memoryBudget);
+            } catch (IOException e) {
                 log.error(e.getMessage());
-                throw new UnsupportedOperationException(String.format("Error when init task with table [%s] in project [%s]", task.getTableName(), task.getProjectName()));
+                throw new UnsupportedOperationException("Failed to create record writer");
             }
         }
 
-        private void partitionTableInit() {
+        /**
+         * Blocks found in the shared upload session were uploaded by former attempts of the tasks,
+         * the writer keeps the blocks of its own task
+         *
+         * @return ids of blocks uploaded by former attempts
+         */
+        private List<Long> getUploadedBlockIds() {
             try {
-                // Check target table is partition table or not
-                if (OdpsUtil.isPartitionTable(odps, task.getProjectName(), task.getTableName())) {
-                    log.info(String.format("Target table [%s] with partition spec [%s] is partition table in maxcompute", task.getTableName(), task.getPartition().get()));
-                } else {
-                    throw new UnsupportedOperationException(String.format("Target table [%s] in project [%s] with partition spec [%s] is not partition table in maxcompute!", task.getTableName(), task.getProjectName(), task.getPartition().get()));
-                }
-                // Prepare table partition (Add new partition if not exists)
-                OdpsUtil.preparePartition(odps, task.getProjectName(), task.getTableName(), task.getPartition().get());
-            } catch (OdpsException e) {
+                return Arrays.asList(uploadSession.getBlockList());
+            } catch (TunnelException | IOException e) {
                 log.error(e.getMessage());
-                throw new UnsupportedOperationException(String.format("Error when prepare partition table [%s] in project [%s] with partition spec [%s]", task.getTableName(), task.getProjectName(), task.getPartition().get()));
+                throw new UnsupportedOperationException("Failed to get uploaded blocks of upload session", e);
             }
         }
 
         private void cleanup(){
-            try {
-                if (null != recordWriter) {
-                    recordWriter.close();
-                }
-                if (null != pageReader) {
-                    pageReader.close();
-                }
-            } catch (IOException e) {
-                log.error(e.getMessage());
-                throw new UnsupportedOperationException("Failed to clean up record writer and page reader!");
+            if (null != pageReader) {
+                pageReader.close();
+                pageReader = null;
             }
-        }
-
-        private String getColumnName(Column column){
-            if (task.getMappings().isPresent() && null != mappings && mappings.containsKey(column.getName())){
-                // Do column mapping convert
-                return mappings.get(column.getName());
-            }else {
-                return column.getName();
+            if (null != deduplicator) {
+                deduplicator.close();
+                deduplicator = null;
             }
         }
 
@@ -196,40 +333,60 @@ public class MaxcomputeOutputPlugin
         public void add(Page page) {
             pageReader.setPage(page);
 
+            long pageStartTime = System.nanoTime();
+            long blockedNanos = metrics.getBlockedNanos();
             try {
-                recordWriter = (TunnelBufferedWriter) uploadSession.openBufferedWriter();
-                recordWriter.setRetryStrategy(retryStrategy);
-                recordWriter.setBufferSize(64 * 1024 * 1024);
-                Record tmp = uploadSession.newRecord();
                 int i = 0;
+                int dropped = 0;
                 while (pageReader.nextRecord()) {
-                    for (Column column : schema.getColumns()) {
-                        // Data Format https://github.com/alibaba/DataX/blob/master/odpswriter/doc/odpswriter.md
-                        if (column.getType() instanceof StringType) {
-                            tmp.setString(getColumnName(column), pageReader.getString(column));
-                        } else if (column.getType() instanceof BooleanType) {
-                            tmp.setBoolean(getColumnName(column), pageReader.getBoolean(column));
-                        } else if (column.getType() instanceof LongType) {
-                            tmp.setBigint(getColumnName(column), pageReader.getLong(column));
-                        } else if (column.getType() instanceof DoubleType) {
-                            tmp.setDouble(getColumnName(column), pageReader.getDouble(column));
-                        } else if (column.getType() instanceof TimestampType) {
-                            Timestamp timestamp = pageReader.getTimestamp(column);
-                            tmp.setDatetime(getColumnName(column), new Date(timestamp.toEpochMilli()));
-                        }
+                    // Duplicates are dropped before conversion, so they cost only the fingerprint of their keys
+                    if (null != deduplicator && deduplicator.isDuplicate(pageReader)) {
+                        dropped += 1;
+                        continue;
+                    }
+                    for (ColumnWriter columnWriter : columnWriters) {
+                        columnWriter.write(pageReader, record);
+                    }
+                    if (null == partitionRouter) {
+                        recordWriter.write(record);
+                    } else {
+                        partitionRouter.write(pageReader, record);
                     }
-                    recordWriter.write(tmp);
                     i += 1;
                 }
-                log.info(String.format("Operate data count [%s]", i));
-                recordWriter.close();
-            } catch (TunnelException | IOException e) {
-                throw new UnsupportedOperationException("Failed to upload related data");
+                if (null != partitionRouter) {
+                    partitionRouter.finishPage();
+                }
+                metrics.addRecords(i);
+                if (dropped > 0) {
+                    metrics.addDroppedRecords(dropped);
+                }
+                // Time waiting for ODPS and tunnel is excluded from conversion time
+                metrics.addConvertNanos(System.nanoTime() - pageStartTime - (metrics.getBlockedNanos() - blockedNanos));
+                log.debug(String.format("Operate data count [%s]", i));
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                throw new UnsupportedOperationException("Failed to upload related data", e);
             }
         }
 
         @Override
         public void finish() {
+            try {
+                if (null == partitionRouter) {
+                    recordWriter.close();
+                } else {
+                    partitionRouter.close();
+                }
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                throw new UnsupportedOperationException("Failed to upload related data", e);
+            }
+            if (null != deduplicator) {
+                log.info(String.format("Task found [%s] distinct keys of %s and dropped [%s] duplicate records, spilled keys in [%s] run files",
+                        deduplicator.getKeys(), task.getDedupKeys(), deduplicator.getDroppedRecords(), deduplicator.getRuns()));
+            }
+            logMetrics(log, "Task", metrics.toMap(), System.nanoTime() - startTime);
             cleanup();
         }
 
@@ -240,51 +397,655 @@ public class MaxcomputeOutputPlugin
 
         @Override
         public void abort() {
+            if (null == partitionRouter) {
+                recordWriter.abort();
+            } else {
+                partitionRouter.abort();
+            }
             cleanup();
         }
 
         @Override
         public TaskReport commit() {
-            try {
-                uploadSession.commit();
-            } catch (TunnelException | IOException e) {
-                throw new UnsupportedOperationException("Failed to commit related data");
+            // Blocks are committed once in transaction with the reports of all tasks
+            List<UploadSessionReport> uploadSessions;
+            if (null == partitionRouter) {
+                uploadSessions = recordWriter.getReports(task.getPartition().orNull());
+            } else {
+                uploadSessions = partitionRouter.getReports();
             }
-            return Exec.newTaskReport();
+            TaskReport report = Exec.newTaskReport();
+            report.set("uploadSessions", uploadSessions.toArray(new UploadSessionReport[uploadSessions.size()]));
+            report.set("metrics", metrics.toMap());
+            return report;
+        }
+    }
+
+    /**
+     * Log throughput and where the time is spent, conversion, network or ODPS
+     *
+     * @param log          logger
+     * @param name         name of the metrics
+     * @param metrics      counters by name
+     * @param elapsedNanos elapsed time to calculate throughput
+     */
+    private static void logMetrics(Logger log, String name, Map<String, Long> metrics, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        long records = getMetric(metrics, "records");
+        long rawBytes = getMetric(metrics, "rawBytes");
+        long uploadedBytes = getMetric(metrics, "uploadedBytes");
+        log.info(String.format("%s uploaded [%s] records in [%.1f] s as [%.0f] records/s, raw bytes [%s] as [%.0f] bytes/s, uploaded bytes [%s] as [%.0f] bytes/s",
+                name, records, seconds, records / seconds, rawBytes, rawBytes / seconds, uploadedBytes, uploadedBytes / seconds));
+        log.info(String.format("%s uploaded [%s] blocks with [%s] retries, convert [%s] ms, upload [%s] ms, blocked [%s] ms, [%s] upload sessions in [%s] ms",
+                name, getMetric(metrics, "blocks"), getMetric(metrics, "retries"), getMetric(metrics, "convertNanos") / 1000000,
+                getMetric(metrics, "uploadNanos") / 1000000, getMetric(metrics, "blockedNanos") / 1000000,
+                getMetric(metrics, "sessions"), getMetric(metrics, "sessionNanos") / 1000000));
+        if (getMetric(metrics, "droppedRecords") > 0) {
+            log.info(String.format("%s dropped [%s] duplicate records", name, getMetric(metrics, "droppedRecords")));
         }
     }
 
+    private static long getMetric(Map<String, Long> metrics, String name) {
+        Long value = metrics.get(name);
+        return null == value ? 0 : value;
+    }
+
+    /**
+     * Get the ODPS client shared by tasks with the same credentials, endpoint, project and timeouts
+     *
+     * @param task plugin task
+     * @return odps client
+     */
+    private Odps generateOdpsClient(PluginTask task) {
+        if (task.getOdpsUrl().isPresent() && !task.getAccessKeyID().isEmpty() && !task.getAccessKeySecret().isEmpty() && !task.getProjectName().isEmpty()) {
+            String key = generateClientKey(task);
+            Odps odps = odpsClients.get(key);
+            if (null == odps) {
+                Account account = new AliyunAccount(task.getAccessKeyID(), task.getAccessKeySecret());
+                Odps newOdps = new Odps(account);
+                newOdps.setEndpoint(task.getOdpsUrl().get());
+                newOdps.setDefaultProject(task.getProjectName());
+                if (task.getConnectTimeout().isPresent()) {
+                    newOdps.getRestClient().setConnectTimeout(task.getConnectTimeout().get());
+                }
+                if (task.getReadTimeout().isPresent()) {
+                    newOdps.getRestClient().setReadTimeout(task.getReadTimeout().get());
+                }
+                odps = odpsClients.putIfAbsent(key, newOdps);
+                if (null == odps) {
+                    odps = newOdps;
+                }
+            }
+            return odps;
+        } else {
+            throw new UnsupportedOperationException("Less parameters for maxcompute output plugin to create ODPS client");
+        }
+    }
+
+    private static String generateClientKey(PluginTask task) {
+        return hashClientKey(String.format("%s\n%s\n%s\n%s\n%s\n%s", task.getAccessKeyID(), task.getAccessKeySecret(), task.getOdpsUrl().orNull(),
+                task.getProjectName(), task.getConnectTimeout().orNull(), task.getReadTimeout().orNull()));
+    }
+
+    private static String hashClientKey(String settings) {
+        return Hashing.sha256().hashString(settings, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Drop the clients shared by tasks, called when the job finishes, the next job creates its own clients
+     */
+    private static void clearClients() {
+        odpsClients.clear();
+        tableTunnels.clear();
+    }
+
+    /**
+     * Block size of one task, adapted between minBlockBufferSize and blockBufferSize if adaptiveBlockSize is true
+     *
+     * @param task plugin task
+     * @return block size controller
+     */
+    private BlockSizeController generateBlockSizeController(PluginTask task) {
+        if (task.getAdaptiveBlockSize()) {
+            return new BlockSizeController(task.getMinBlockBufferSize(), task.getBlockBufferSize());
+        }
+        return BlockSizeController.fixed(task.getBlockBufferSize());
+    }
+
+    private RetryPolicy generateRetryPolicy(PluginTask task) {
+        return new RetryPolicy(task.getRetryLimit(), task.getRetryWaitMillis(), task.getMaxRetryWaitMillis());
+    }
+
+    /**
+     * Directory to keep failed blocks while retrying, created if not exists
+     *
+     * @param task plugin task
+     * @return spill directory, null if not set
+     */
+    private File generateSpillDirectory(PluginTask task) {
+        if (!task.getSpillDirectory().isPresent()) {
+            return null;
+        }
+        File spillDirectory = new File(task.getSpillDirectory().get());
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs() && !spillDirectory.isDirectory()) {
+            throw new UnsupportedOperationException(String.format("Failed to create spill directory [%s]", spillDirectory));
+        }
+        return spillDirectory;
+    }
+
+    /**
+     * Compression of uploaded blocks, none, deflate or snappy
+     *
+     * @param task plugin task
+     * @return compress option
+     */
+    private CompressOption generateCompressOption(PluginTask task) {
+        String compression = task.getCompression().toLowerCase();
+        if ("none".equals(compression)) {
+            return new CompressOption(CompressOption.CompressAlgorithm.ODPS_RAW, 0, 0);
+        } else if ("deflate".equals(compression)) {
+            return new CompressOption(CompressOption.CompressAlgorithm.ODPS_ZLIB, task.getCompressionLevel(), 0);
+        } else if ("snappy".equals(compression)) {
+            return new CompressOption(CompressOption.CompressAlgorithm.ODPS_SNAPPY, 0, 0);
+        } else {
+            throw new UnsupportedOperationException(String.format("Unsupported compression [%s], must be none, deflate or snappy", task.getCompression()));
+        }
+    }
+
+    /**
+     * Get the table tunnel shared by tasks with the same client, tunnel endpoint is discovered with odpsUrl if tunnelUrl is not set
+     *
+     * @param odps odps client
+     * @param task plugin task
+     * @return table tunnel
+     */
+    private TableTunnel generateTableTunnel(Odps odps, PluginTask task) {
+        if (null != odps) {
+            String key = hashClientKey(String.format("%s\n%s", generateClientKey(task), task.getTunnelUrl().orNull()));
+            TableTunnel tableTunnel = tableTunnels.get(key);
+            if (null == tableTunnel) {
+                TableTunnel newTableTunnel;
+                // Configuration of the tunnel is not exposed by the SDK, it takes the timeouts from the defaults when created,
+                // so the defaults are set only while creating this tunnel and restored for other tunnels in the JVM
+                synchronized (GeneralConfiguration.class) {
+                    int defaultConnectTimeout = GeneralConfiguration.DEFAULT_SOCKET_CONNECT_TIMEOUT;
+                    int defaultReadTimeout = GeneralConfiguration.DEFAULT_SOCKET_TIMEOUT;
+                    try {
+                        if (task.getConnectTimeout().isPresent()) {
+                            GeneralConfiguration.DEFAULT_SOCKET_CONNECT_TIMEOUT = task.getConnectTimeout().get();
+                        }
+                        if (task.getReadTimeout().isPresent()) {
+                            GeneralConfiguration.DEFAULT_SOCKET_TIMEOUT = task.getReadTimeout().get();
+                        }
+                        newTableTunnel = new TableTunnel(odps);
+                    } finally {
+                        GeneralConfiguration.DEFAULT_SOCKET_CONNECT_TIMEOUT = defaultConnectTimeout;
+                        GeneralConfiguration.DEFAULT_SOCKET_TIMEOUT = defaultReadTimeout;
+                    }
+                }
+                if (task.getTunnelUrl().isPresent()) {
+                    newTableTunnel.setEndpoint(task.getTunnelUrl().get());
+                }
+                tableTunnel = tableTunnels.putIfAbsent(key, newTableTunnel);
+                if (null == tableTunnel) {
+                    tableTunnel = newTableTunnel;
+                }
+            }
+            return tableTunnel;
+        } else {
+            throw new UnsupportedOperationException("Less parameters for maxcompute output plugin to create table tunnel session");
+        }
+    }
+
+    /**
+     * Create a new upload session, or attach to the existing one if session id is given
+     *
+     * @param odps            odps client
+     * @param task            plugin task
+     * @param partition       target partition spec, null for non-partition table
+     * @param uploadSessionId existing upload session id, create new session if null
+     * @return upload session
+     */
+    private TableTunnel.UploadSession generateTableUploadSession(Odps odps, PluginTask task, String partition, String uploadSessionId) {
+        TableTunnel tableTunnel = generateTableTunnel(odps, task);
+        try {
+            TableTunnel.UploadSession uploadSession;
+            if (null == partition) {
+                if (null == uploadSessionId) {
+                    log.info("Running with no partition mode");
+                    uploadSession = tableTunnel.createUploadSession(task.getProjectName(), getUploadTableName(task));
+                } else {
+                    uploadSession = tableTunnel.getUploadSession(task.getProjectName(), getUploadTableName(task), uploadSessionId);
+                }
+            } else {
+                PartitionSpec partitionSpec = new PartitionSpec(partition);
+                if (null == uploadSessionId) {
+                    log.info(String.format("Running with partition mode as : [%s]", partition));
+                    uploadSession = tableTunnel.createUploadSession(task.getProjectName(), getUploadTableName(task), partitionSpec);
+                } else {
+                    uploadSession = tableTunnel.getUploadSession(task.getProjectName(), getUploadTableName(task), partitionSpec, uploadSessionId);
+                }
+            }
+            return uploadSession;
+        } catch (TunnelException e) {
+            log.error(e.getErrorMsg());
+            throw new UnsupportedOperationException("Failed to create table tunnel session", e);
+        }
+    }
+
+    /**
+     * @param task plugin task
+     * @return staging table in staging overwrite mode or merge mode, otherwise target table
+     */
+    private static String getUploadTableName(PluginTask task) {
+        return null != task.getStagingTableName() ? task.getStagingTableName() : task.getTableName();
+    }
+
+    /**
+     * @param task plugin task
+     * @return true if data is loaded to a staging table and target table is overwritten after all tasks
+     */
+    private static boolean isStagingOverwrite(PluginTask task) {
+        return task.getOverwrite() && "staging".equalsIgnoreCase(task.getOverwriteMode());
+    }
+
+    /**
+     * @param task plugin task
+     * @return true if data is loaded to a staging table and merged into target table by merge keys after all tasks
+     */
+    private static boolean isMerge(PluginTask task) {
+        return "merge".equalsIgnoreCase(task.getMode());
+    }
+
+    /**
+     * Check merge keys and merge order column are data columns of target table
+     *
+     * @param tableSchema schema of target table
+     * @param task        plugin task
+     */
+    private void checkMergeKeys(TableSchema tableSchema, PluginTask task) {
+        if (task.getOverwrite()) {
+            throw new UnsupportedOperationException("overwrite could not be set with mode merge!");
+        }
+        if (task.getMergeKeys().isEmpty()) {
+            throw new UnsupportedOperationException("mergeKeys must be set with mode merge!");
+        }
+        for (String mergeKey : task.getMergeKeys()) {
+            if (!tableSchema.containsColumn(mergeKey)) {
+                throw new UnsupportedOperationException(String.format("Merge key [%s] is not a column of target table [%s]", mergeKey, task.getTableName()));
+            }
+        }
+        if (task.getMergeOrderColumn().isPresent() && !tableSchema.containsColumn(task.getMergeOrderColumn().get())) {
+            throw new UnsupportedOperationException(String.format("mergeOrderColumn [%s] is not a column of target table [%s]", task.getMergeOrderColumn().get(), task.getTableName()));
+        }
+        log.info(String.format("Running with merge mode by keys : %s", task.getMergeKeys()));
+    }
+
+    /**
+     * Validate target table and prepare it once for all tasks
+     * Clear existing data if overwrite is true, and add target partition if not exists
+     * In staging overwrite mode, a staging table is created instead and target table is kept until all tasks succeed
+     * In merge mode, data is loaded to a staging table as well and merged into target table after all tasks succeed
+     *
+     * @param odps   odps client
+     * @param task   plugin task
+     * @param schema input schema
+     */
+    private void prepareTargetTable(Odps odps, PluginTask task, Schema schema) {
+        try {
+            // Check target table exists or not, table meta is loaded once and reused for the checks below
+            Table table = OdpsUtil.getTable(odps, task.getProjectName(), task.getTableName());
+            if (null != table) {
+                log.info(String.format("Target table [%s] in project [%s] exists!", task.getTableName(), task.getProjectName()));
+            } else {
+                throw new UnsupportedOperationException(String.format("Target table [%s] in project [%s] does not exists!", task.getTableName(), task.getProjectName()));
+            }
+
+            // Check configuration before any data is cleared
+            checkConfiguration(table.getSchema(), task, schema);
+
+            if (isMerge(task) || isStagingOverwrite(task)) {
+                String stagingTableName = task.getTableName() + "_embulk_staging_" + UUID.randomUUID().toString().replace("-", "");
+                OdpsUtil.createStagingTable(odps, task.getProjectName(), task.getTableName(), stagingTableName);
+                task.setStagingTableName(stagingTableName);
+            } else if (!task.getOverwrite()) {
+                log.info("No need to clear data before running data!");
+            } else {
+                if (!task.getPartition().isPresent()) {
+                    log.info(String.format("Clear data with non-partition table [%s] of project [%s]", task.getTableName(), task.getProjectName()));
+                    OdpsUtil.truncateNonePartitionTable(odps, task.getProjectName(), task.getTableName());
+                } else {
+                    log.info(String.format("Clear data in partition [%s] with table [%s] of project [%s]", task.getPartition().get(), task.getTableName(), task.getProjectName()));
+                    OdpsUtil.dropPartition(odps, task.getProjectName(), task.getTableName(), task.getPartition().get());
+                }
+            }
+
+            // Prepare table partition (Add new partition if not exists)
+            if (task.getPartition().isPresent()) {
+                OdpsUtil.preparePartition(odps, task.getProjectName(), getUploadTableName(task), task.getPartition().get());
+            }
+        } catch (OdpsException e) {
+            log.error(e.getMessage());
+            throw new UnsupportedOperationException(String.format("Error when prepare table [%s] in project [%s]", task.getTableName(), task.getProjectName()));
+        }
+    }
+
+    /**
+     * Check configuration with target table schema, so that no data is cleared and no task is started with wrong configuration
+     * No request is sent to ODPS
+     *
+     * @param tableSchema schema of target table
+     * @param task        plugin task
+     * @param schema      input schema
+     */
+    void checkConfiguration(TableSchema tableSchema, PluginTask task, Schema schema) {
+        // Check table partition configuration
+        boolean isPartitionTable = OdpsUtil.isPartitionTable(tableSchema);
+        if (!task.getPartitionColumns().isEmpty()) {
+            checkPartitionColumns(tableSchema, task, schema);
+        } else if (!task.getPartition().isPresent()) {
+            if (isPartitionTable) {
+                throw new UnsupportedOperationException(String.format("Target table [%s] in project [%s] is partition table in maxcompute, partition must be set!", task.getTableName(), task.getProjectName()));
+            }
+            log.info(String.format("No need check partition configuration of table [%s] in project [%s]!", task.getTableName(), task.getProjectName()));
+        } else if (isPartitionTable) {
+            log.info(String.format("Target table [%s] with partition spec [%s] is partition table in maxcompute", task.getTableName(), task.getPartition().get()));
+        } else {
+            throw new UnsupportedOperationException(String.format("Target table [%s] in project [%s] with partition spec [%s] is not partition table in maxcompute!", task.getTableName(), task.getProjectName(), task.getPartition().get()));
+        }
+
+        // Check column mappings with target table schema, so that no task is started with wrong mappings
+        ColumnWriter.compile(schema, tableSchema, task.getMappings().isPresent() ? task.getMappings().get() : null);
+        RecordDeduplicator.compileKeys(task.getDedupKeys(), schema);
+        // Uploaded blocks are skipped by block boundaries of the former attempt, which vary with timing in adaptive block size
+        if (task.getSkipUploadedBlocks() && task.getAdaptiveBlockSize()) {
+            throw new UnsupportedOperationException("skipUploadedBlocks could not be set with adaptiveBlockSize!");
+        }
+
+        // Check load mode and table overwrite configuration
+        if (!"append".equalsIgnoreCase(task.getMode()) && !isMerge(task)) {
+            throw new UnsupportedOperationException(String.format("Unsupported mode [%s], must be append or merge", task.getMode()));
+        }
+        if (!"truncate".equalsIgnoreCase(task.getOverwriteMode()) && !"staging".equalsIgnoreCase(task.getOverwriteMode())) {
+            throw new UnsupportedOperationException(String.format("Unsupported overwriteMode [%s], must be truncate or staging", task.getOverwriteMode()));
+        }
+        if (isMerge(task)) {
+            checkMergeKeys(tableSchema, task);
+        }
+    }
+
+    /**
+     * Check partition columns match all partition keys of target table
+     *
+     * @param tableSchema schema of target table
+     * @param task        plugin task
+     * @param schema      input schema
+     */
+    private void checkPartitionColumns(TableSchema tableSchema, PluginTask task, Schema schema) {
+        if (task.getPartition().isPresent()) {
+            throw new UnsupportedOperationException("partition and partitionColumns could not be set at the same time!");
+        }
+        if (task.getOverwrite() && !isStagingOverwrite(task)) {
+            throw new UnsupportedOperationException("overwrite is only supported with overwriteMode staging with partitionColumns!");
+        }
+        if (!OdpsUtil.isPartitionTable(tableSchema)) {
+            throw new UnsupportedOperationException(String.format("Target table [%s] in project [%s] is not partition table in maxcompute!", task.getTableName(), task.getProjectName()));
+        }
+        List<String> partitionKeys = new ArrayList<String>();
+        for (com.aliyun.odps.Column partitionColumn : tableSchema.getPartitionColumns()) {
+            partitionKeys.add(partitionColumn.getName());
+        }
+        List<String> partitionColumnNames = new ArrayList<String>();
+        for (PartitionColumnTask partitionColumnTask : task.getPartitionColumns()) {
+            partitionColumnNames.add(partitionColumnTask.getName());
+        }
+        if (!partitionKeys.equals(partitionColumnNames)) {
+            throw new UnsupportedOperationException(String.format("partitionColumns %s must match partition keys %s of target table [%s]", partitionColumnNames, partitionKeys, task.getTableName()));
+        }
+        PartitionColumn.compile(task.getPartitionColumns(), schema);
+        log.info(String.format("Running with partition columns mode as : %s", partitionColumnNames));
+    }
+
     @Override
     public ConfigDiff transaction(ConfigSource config,
                                   Schema schema, int taskCount,
                                   OutputPlugin.Control control) {
         PluginTask task = config.loadConfig(PluginTask.class);
 
-        // retryable (idempotent) output:
-        // return resume(task.dump(), schema, taskCount, control);
+        // Metadata operations run once here, target table must be prepared before creating the upload session shared by all tasks
+        Odps odps = generateOdpsClient(task);
+        PartitionIndex.invalidate(task.getProjectName(), task.getTableName());
+        task.setStagingTableName(null);
+        prepareTargetTable(odps, task, schema);
+        if (task.getPartitionColumns().isEmpty()) {
+            TableTunnel.UploadSession uploadSession = generateTableUploadSession(odps, task, task.getPartition().orNull(), null);
+            log.info(String.format("Created upload session [%s] for [%s] tasks", uploadSession.getId(), taskCount));
+            task.setUploadSessionId(uploadSession.getId());
+        }
+        task.setTaskCount(taskCount);
 
-        // non-retryable (non-idempotent) output:
-        control.run(task.dump());
-        return Exec.newConfigDiff();
+        // Upload sessions are kept until committed, so failed tasks can be resumed with the same upload sessions
+        return resume(task.dump(), schema, taskCount, control);
+    }
+
+    /**
+     * Commit blocks uploaded by all tasks, each upload session is committed once
+     * Sessions are committed together by a bounded pool, all of them are tried even if some fail
+     *
+     * @param odps        odps client
+     * @param task        plugin task
+     * @param taskReports reports of all tasks, including the tasks succeeded before resuming
+     * @return record count of each committed partition, the partition is null for non-partition table
+     */
+    private Map<String, Long> commitUploadSessions(final Odps odps, final PluginTask task, List<TaskReport> taskReports) {
+        Map<String, String> partitions = new LinkedHashMap<String, String>();
+        Map<String, List<Long>> blockIds = new HashMap<String, List<Long>>();
+        Map<String, Long> recordCounts = new HashMap<String, Long>();
+        for (TaskReport taskReport : taskReports) {
+            for (UploadSessionReport report : taskReport.get(UploadSessionReport[].class, "uploadSessions")) {
+                if (!blockIds.containsKey(report.getUploadSessionId())) {
+                    partitions.put(report.getUploadSessionId(), report.getPartition());
+                    blockIds.put(report.getUploadSessionId(), new ArrayList<Long>());
+                    recordCounts.put(report.getUploadSessionId(), 0L);
+                }
+                blockIds.get(report.getUploadSessionId()).addAll(Arrays.asList(report.getBlockIds()));
+                recordCounts.put(report.getUploadSessionId(), recordCounts.get(report.getUploadSessionId()) + report.getRecordCount());
+            }
+        }
+        Map<String, Long> partitionRecordCounts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, String> entry : partitions.entrySet()) {
+            Long partitionRecordCount = partitionRecordCounts.get(entry.getValue());
+            partitionRecordCounts.put(entry.getValue(), (null == partitionRecordCount ? 0L : partitionRecordCount) + recordCounts.get(entry.getKey()));
+        }
+        if (partitions.size() <= 1) {
+            for (Map.Entry<String, String> entry : partitions.entrySet()) {
+                commitUploadSession(odps, task, entry.getValue(), entry.getKey(), blockIds.get(entry.getKey()), recordCounts.get(entry.getKey()));
+            }
+            return partitionRecordCounts;
+        }
+
+        ExecutorService committer = Executors.newFixedThreadPool(Math.min(partitions.size(), MAX_COMMIT_THREADS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "maxcompute-session-committer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            Map<String, Future<?>> futures = new LinkedHashMap<String, Future<?>>();
+            for (final Map.Entry<String, String> entry : partitions.entrySet()) {
+                final List<Long> sessionBlockIds = blockIds.get(entry.getKey());
+                final long sessionRecordCount = recordCounts.get(entry.getKey());
+                futures.put(entry.getKey(), committer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        commitUploadSession(odps, task, entry.getValue(), entry.getKey(), sessionBlockIds, sessionRecordCount);
+                    }
+                }));
+            }
+            // Sessions committed before a failure stay committed, they are skipped when the job is resumed
+            Throwable failure = null;
+            int failedSessions = 0;
+            for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    failure = null == failure ? e.getCause() : failure;
+                    failedSessions += 1;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UnsupportedOperationException("Interrupted while committing upload sessions", e);
+                }
+            }
+            if (null != failure) {
+                throw new UnsupportedOperationException(String.format("Failed to commit [%s] of [%s] upload sessions", failedSessions, futures.size()), failure);
+            }
+        } finally {
+            committer.shutdownNow();
+        }
+        return partitionRecordCounts;
+    }
+
+    /**
+     * Commit one upload session unless it was committed before,
+     * so a job resumed after failing in the statements following the commit does not commit the same session twice
+     *
+     * @param odps            odps client
+     * @param task            plugin task
+     * @param partition       partition spec of the upload session, null for non-partition table
+     * @param uploadSessionId upload session id
+     * @param blockIds        ids of blocks uploaded by all tasks
+     * @param recordCount     count of records uploaded by all tasks
+     */
+    private void commitUploadSession(Odps odps, PluginTask task, String partition, String uploadSessionId, List<Long> blockIds, long recordCount) {
+        TableTunnel.UploadSession uploadSession = generateTableUploadSession(odps, task, partition, uploadSessionId);
+        try {
+            if (TableTunnel.UploadStatus.CLOSED == uploadSession.getStatus()) {
+                log.info(String.format("Upload session [%s] with record count [%s] was committed before, skip committing", uploadSessionId, recordCount));
+                return;
+            }
+            log.info(String.format("Commit upload session [%s] with block count [%s] and record count [%s]", uploadSessionId, blockIds.size(), recordCount));
+            uploadSession.commit(blockIds.toArray(new Long[blockIds.size()]));
+        } catch (TunnelException | IOException e) {
+            log.error(e.getMessage());
+            throw new UnsupportedOperationException(String.format("Failed to commit upload session [%s]", uploadSessionId), e);
+        }
+    }
+
+    /**
+     * Merge staging table into target table, only the partitions with loaded records are merged
+     *
+     * @param odps                  odps client
+     * @param task                  plugin task
+     * @param partitionRecordCounts record count of each committed partition
+     */
+    private void mergeStagingTable(Odps odps, PluginTask task, Map<String, Long> partitionRecordCounts) {
+        List<String> partitions = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : partitionRecordCounts.entrySet()) {
+            if (null != entry.getKey() && entry.getValue() > 0) {
+                partitions.add(entry.getKey());
+            }
+        }
+        long recordCount = 0;
+        for (Long partitionRecordCount : partitionRecordCounts.values()) {
+            recordCount += partitionRecordCount;
+        }
+        if (recordCount == 0 || (!task.getPartitionColumns().isEmpty() && partitions.isEmpty())) {
+            log.info(String.format("No record is loaded, skip merging into table [%s]", task.getTableName()));
+            return;
+        }
+        try {
+            OdpsUtil.mergeWithStagingTable(odps, task.getProjectName(), task.getTableName(), task.getStagingTableName(),
+                    task.getPartition().orNull(), partitions, task.getMergeKeys(), task.getMergeOrderColumn().orNull());
+        } catch (OdpsException e) {
+            log.error(e.getMessage());
+            throw new UnsupportedOperationException(String.format("Failed to merge staging table [%s] into table [%s]", task.getStagingTableName(), task.getTableName()), e);
+        }
     }
 
     @Override
     public ConfigDiff resume(TaskSource taskSource,
                              Schema schema, int taskCount,
                              OutputPlugin.Control control) {
-        throw new UnsupportedOperationException("maxcompute output plugin does not support resuming");
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        try {
+            return runAndCommit(task, taskSource, control);
+        } finally {
+            // Clients are not kept beyond the job, cleanup creates its own if needed
+            clearClients();
+        }
+    }
+
+    /**
+     * Run the tasks and commit their upload sessions, then overwrite or merge the target table with the staging table
+     *
+     * @param task       plugin task
+     * @param taskSource task source given to the tasks
+     * @param control    control running the tasks
+     * @return config diff of the job
+     */
+    private ConfigDiff runAndCommit(PluginTask task, TaskSource taskSource, OutputPlugin.Control control) {
+        if (task.getJmxMetrics()) {
+            UploadMetrics.registerMBean();
+        }
+        long sqlTasks = UploadMetrics.global().getSqlTasks();
+        long sqlNanos = UploadMetrics.global().getSqlNanos();
+
+        // Only failed tasks run again on resuming, reports of all tasks are given to commit blocks once
+        long startTime = System.nanoTime();
+        List<TaskReport> taskReports = control.run(taskSource);
+        long runNanos = System.nanoTime() - startTime;
+        Odps odps = generateOdpsClient(task);
+        long commitStartTime = System.nanoTime();
+        Map<String, Long> partitionRecordCounts = commitUploadSessions(odps, task, taskReports);
+        log.info(String.format("Committed upload sessions in [%s] ms", (System.nanoTime() - commitStartTime) / 1000000));
+        if (null != task.getStagingTableName() && isMerge(task)) {
+            mergeStagingTable(odps, task, partitionRecordCounts);
+        } else if (null != task.getStagingTableName()) {
+            try {
+                OdpsUtil.overwriteWithStagingTable(odps, task.getProjectName(), task.getTableName(), task.getStagingTableName(), task.getPartition().orNull());
+            } catch (OdpsException e) {
+                log.error(e.getMessage());
+                throw new UnsupportedOperationException(String.format("Failed to overwrite table [%s] with staging table [%s]", task.getTableName(), task.getStagingTableName()), e);
+            }
+        }
+
+        // Metrics of tasks succeeded before resuming are included, elapsed time is of this run
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        for (TaskReport taskReport : taskReports) {
+            @SuppressWarnings("unchecked")
+            Map<String, Number> taskMetrics = taskReport.get(Map.class, "metrics", null);
+            if (null != taskMetrics) {
+                UploadMetrics.merge(metrics, taskMetrics);
+            }
+        }
+        logMetrics(log, "Job", metrics, runNanos);
+        log.info(String.format("Job ran [%s] sql tasks in [%s] ms with compression [%s]", UploadMetrics.global().getSqlTasks() - sqlTasks,
+                (UploadMetrics.global().getSqlNanos() - sqlNanos) / 1000000, task.getCompression()));
+        return Exec.newConfigDiff();
     }
 
     @Override
     public void cleanup(TaskSource taskSource,
                         Schema schema, int taskCount,
                         List<TaskReport> successTaskReports) {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        if (null != task.getStagingTableName()) {
+            try {
+                OdpsUtil.dropTable(generateOdpsClient(task), task.getProjectName(), task.getStagingTableName());
+            } catch (OdpsException e) {
+                // Staging table is removed by its lifecycle anyway
+                log.warn(String.format("Failed to drop staging table [%s]: %s", task.getStagingTableName(), e.getMessage()));
+            }
+        }
+        clearClients();
     }
 
     @Override
     public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
         PluginTask task = taskSource.loadTask(PluginTask.class);
-        MaxcomputePageOutput pageOutput = new MaxcomputePageOutput(task, schema);
+        MaxcomputePageOutput pageOutput = new MaxcomputePageOutput(task, schema, taskIndex);
         return pageOutput;
     }
 }
@@ -0,0 +1,103 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.Exec;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Bytes of block buffers shared by all tasks running in the JVM
+ * Writers reserve the block size for each buffer they create and release it when the buffer is dropped,
+ * a writer waits for its first buffer while the budget is used by others, and uses its existing buffers
+ * instead of creating more when the budget is exhausted
+ */
+public class MemoryBudget {
+
+    private static MemoryBudget global;
+
+    private final long limit;
+    private long used;
+
+    /**
+     * @param limit max bytes of block buffers, use the global budget to share it with all tasks in the JVM
+     */
+    MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * The limit is fixed by the first task in the JVM, so buffers reserved by running writers never exceed it
+     *
+     * @param limit max bytes of all block buffers in the JVM, ignored with a warning if it differs from the limit of the first task
+     * @return budget shared by all tasks in the JVM
+     */
+    public static synchronized MemoryBudget global(long limit) {
+        if (null == global) {
+            global = new MemoryBudget(limit);
+        } else if (global.limit != limit) {
+            Exec.getLogger(MemoryBudget.class).warn(String.format("memoryBudget [%s] differs from [%s] set by a former task in the JVM, [%s] is kept",
+                    limit, global.limit, global.limit));
+        }
+        return global;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param blockSize block size of a buffer
+     * @return bytes reserved for the buffer, with room for the record crossing the block size
+     */
+    public static long getBufferBytes(long blockSize) {
+        return Math.min(blockSize + blockSize / 16, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @param bytes bytes to reserve
+     * @return true if the bytes could be reserved now
+     */
+    public synchronized boolean isAvailable(long bytes) {
+        return used == 0 || used + bytes <= limit;
+    }
+
+    /**
+     * Reserve the bytes if available, a request larger than the limit is granted when nothing else is reserved
+     *
+     * @param bytes bytes to reserve
+     * @return true if reserved
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (!isAvailable(bytes)) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    /**
+     * Wait until the bytes are released by other writers and reserve them
+     *
+     * @param bytes bytes to reserve
+     * @throws InterruptedIOException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedIOException {
+        try {
+            while (!isAvailable(bytes)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory budget of block buffers");
+        }
+        used += bytes;
+    }
+
+    public synchronized void release(long bytes) {
+        used = Math.max(used - bytes, 0);
+        notifyAll();
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+}
@@ -2,11 +2,27 @@ package org.embulk.output.maxcompute;
 
 public class OdpsTaskException extends Exception{
 
+    private final boolean retryable;
+
     public OdpsTaskException(String message) {
-        super(message);
+        this(message, null, true);
     }
 
     public OdpsTaskException(String message, Throwable cause) {
+        this(message, cause, true);
+    }
+
+    /**
+     * @param message   error message
+     * @param cause     cause of the failure, may be null
+     * @param retryable false if running the same sql again fails the same way, such as syntax or permission errors
+     */
+    public OdpsTaskException(String message, Throwable cause, boolean retryable) {
         super(message, cause);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
     }
 }
@@ -7,13 +7,37 @@ import org.embulk.spi.Exec;
 import org.slf4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class OdpsUtil {
 
     private static final Logger log = Exec.getLogger(OdpsUtil.class);
     public static int MAX_RETRY_TIME = 3;
+    // Partitions added by one statement, larger lists are split into statements running together
+    private static final int MAX_PARTITIONS_PER_STATEMENT = 64;
+    private static final long MIN_POLL_MILLIS = 100;
+    private static final long MAX_POLL_MILLIS = 1000;
+    private static final long MAX_RETRY_WAIT_MILLIS = 128 * 1000;
+    // Error codes of requests which fail the same way when sent again
+    private static final String[] NON_RETRYABLE_ERROR_CODES = {"AccessDenied", "NoPermission", "Unauthorized", "InvalidArgument",
+            "NoSuchObject", "NoSuchProject", "NoSuchTable", "NoSuchPartition", "ObjectAlreadyExists"};
+    // Error code prefixes of failed sql which is wrong or not allowed: ODPS-0130 for syntax and semantic errors,
+    // ODPS-0410 for authentication, ODPS-0420095 access denied, ODPS-0420061 invalid request, ODPS-0420111 no such project.
+    // Other codes such as ODPS-0110044 of flow control or ODPS-0110061 of conflicting ddl are retried
+    private static final String[] NON_RETRYABLE_RESULT_CODES = {"ODPS-0130", "ODPS-0410", "ODPS-0420095", "ODPS-0420061", "ODPS-0420111"};
+
+    // Column numbering rows of the same keys in staging table while merging
+    private static final String MERGE_ROW_NUMBER = "embulk_merge_row_number";
+
+    private static ScheduledExecutorService sqlTaskScheduler;
 
     /**
      * Check target table exists in target ODPS project or not
@@ -28,6 +52,25 @@ public class OdpsUtil {
         return odps.tables().exists(projectName, tableName);
     }
 
+    /**
+     * Load target table meta with one request
+     *
+     * @param odps        odps client
+     * @param projectName target project name
+     * @param tableName   target table name
+     * @return loaded table, null if target table does not exist
+     * @throws OdpsException
+     */
+    public static Table getTable(Odps odps, String projectName, String tableName) throws OdpsException {
+        Table table = odps.tables().get(projectName, tableName);
+        try {
+            table.reload();
+        } catch (NoSuchObjectException e) {
+            return null;
+        }
+        return table;
+    }
+
     /**
      * Check target table is partition table or not
      *
@@ -37,33 +80,33 @@ public class OdpsUtil {
      * @return boolean
      */
     public static boolean isPartitionTable(Odps odps, String projectName, String tableName) {
-        Table table = odps.tables().get(projectName, tableName);
-        List<Column> partitionKeys = table.getSchema().getPartitionColumns();
-        return null != partitionKeys && !partitionKeys.isEmpty();
+        return isPartitionTable(odps.tables().get(projectName, tableName));
     }
 
     /**
-     * List all the existing ODPS table partition
+     * Check loaded table is partition table or not
      *
-     * @param table taget odps table
-     * @return list of partitions
-     * @throws OdpsException
+     * @param table target odps table
+     * @return boolean
      */
-    public static List<String> listOdpsPartitions(Table table) throws OdpsException {
-        List<String> parts = new ArrayList<String>();
-        try {
-            List<Partition> partitions = table.getPartitions();
-            for (Partition partition : partitions) {
-                parts.add(partition.getPartitionSpec().toString());
-            }
-        } catch (Exception e) {
-            throw new OdpsException(e);
-        }
-        return parts;
+    public static boolean isPartitionTable(Table table) {
+        return isPartitionTable(table.getSchema());
+    }
+
+    /**
+     * Check table schema has partition keys or not
+     *
+     * @param tableSchema target table schema
+     * @return boolean
+     */
+    public static boolean isPartitionTable(TableSchema tableSchema) {
+        List<Column> partitionKeys = tableSchema.getPartitionColumns();
+        return null != partitionKeys && !partitionKeys.isEmpty();
     }
 
     /**
-     * Check target partition exists or not
+     * Check target partition exists or not with one lookup of the partition,
+     * instead of listing all partitions of target table
      *
      * @param table     target odps table
      * @param partition target table partition spec
@@ -71,16 +114,7 @@ public class OdpsUtil {
      * @throws OdpsException
      */
     private static boolean isPartitionExist(Table table, String partition) throws OdpsException {
-        List<String> odpsParts = OdpsUtil.listOdpsPartitions(table);
-
-        int j = 0;
-        for (; j < odpsParts.size(); j++) {
-            if (odpsParts.get(j).replaceAll("'", "").equals(partition)) {
-                break;
-            }
-        }
-
-        return j != odpsParts.size();
+        return table.hasPartition(new PartitionSpec(partition));
     }
 
     /**
@@ -99,11 +133,8 @@ public class OdpsUtil {
             log.info(String.format("The target partition [%s] exists, no need to add new one!", partition));
         } else {
             log.info(String.format("Add target partition [%s] with table [%s] of project [%s]!", partition, tableName, projectName));
-            StringBuilder addPart = new StringBuilder();
-            addPart.append("alter table ").append(table.getName()).append(" add IF NOT EXISTS partition(")
-                    .append(partition).append(");");
             try {
-                runSqlTaskWithRetry(odps, addPart.toString(), MAX_RETRY_TIME, 1000, true);
+                runSqlTaskWithRetry(odps, getAddPartitionsSql(table.getName(), Collections.singletonList(partition)), MAX_RETRY_TIME, 1000, true);
             } catch (Exception e) {
                 log.error(String.format("Failed to add partition [%s] for table [%s] of project [%s]", partition, tableName, projectName));
                 throw new OdpsException(e);
@@ -111,6 +142,47 @@ public class OdpsUtil {
         }
     }
 
+    /**
+     * Add partitions of target table with one statement, existing partitions are skipped
+     * Long lists of partitions are added by several statements running at the same time
+     *
+     * @param odps        odps client
+     * @param projectName target project name
+     * @param tableName   target table name
+     * @param partitions  target table partition specs
+     * @throws OdpsException
+     */
+    public static void addPartitions(Odps odps, String projectName, String tableName, List<String> partitions) throws OdpsException {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        log.info(String.format("Add target partitions %s with table [%s] of project [%s]!", partitions, tableName, projectName));
+        List<String> queries = new ArrayList<String>();
+        for (int i = 0; i < partitions.size(); i += MAX_PARTITIONS_PER_STATEMENT) {
+            queries.add(getAddPartitionsSql(tableName, partitions.subList(i, Math.min(i + MAX_PARTITIONS_PER_STATEMENT, partitions.size()))));
+        }
+        try {
+            runSqlTasks(odps, queries, new RetryPolicy(MAX_RETRY_TIME - 1, 1000, MAX_RETRY_WAIT_MILLIS));
+        } catch (Exception e) {
+            log.error(String.format("Failed to add partitions %s for table [%s] of project [%s]", partitions, tableName, projectName));
+            throw new OdpsException(e);
+        }
+    }
+
+    /**
+     * @param tableName  target table name
+     * @param partitions target table partition specs
+     * @return statement adding the partitions if not exist
+     */
+    static String getAddPartitionsSql(String tableName, List<String> partitions) {
+        StringBuilder addParts = new StringBuilder();
+        addParts.append("alter table ").append(quoteName(tableName)).append(" add IF NOT EXISTS");
+        for (String partition : partitions) {
+            addParts.append(" partition(").append(formatPartition(partition)).append(")");
+        }
+        return addParts.append(";").toString();
+    }
+
     /**
      * Truncate non-partition table
      * @param odps odps client
@@ -120,7 +192,7 @@ public class OdpsUtil {
      */
     public static void truncateNonePartitionTable(Odps odps, String projectName, String tableName) throws OdpsException {
         log.info(String.format("Truncate non-partition table [%s] of project [%s]", tableName, projectName));
-        String truncateNonPartitionedTableSql = "truncate table " + tableName + ";";
+        String truncateNonPartitionedTableSql = "truncate table " + quoteName(tableName) + ";";
         try {
             runSqlTaskWithRetry(odps, truncateNonPartitionedTableSql, MAX_RETRY_TIME, 1000, true);
         } catch (Exception e) {
@@ -141,12 +213,8 @@ public class OdpsUtil {
         Table table = odps.tables().get(projectName, tableName);
         if (OdpsUtil.isPartitionExist(table, partition)) {
             log.info(String.format("The target partition [%s] exists! Running drop partition action!", partition));
-            StringBuilder dropPart = new StringBuilder();
-            dropPart.append("alter table ").append(table.getName())
-                    .append(" drop IF EXISTS partition(").append(partition)
-                    .append(");");
             try {
-                runSqlTaskWithRetry(odps, dropPart.toString(), MAX_RETRY_TIME, 1000, true);
+                runSqlTaskWithRetry(odps, getDropPartitionSql(table.getName(), partition), MAX_RETRY_TIME, 1000, true);
             } catch (Exception e) {
                 log.error(String.format("Failed to drop partition [%s] with table [%s] of project [%s]", partition, tableName, projectName));
                 throw new OdpsException(e);
@@ -157,7 +225,256 @@ public class OdpsUtil {
     }
 
     /**
-     * Run ODPS SQL task with retry strategy
+     * @param tableName target table name
+     * @param partition target partition spec
+     * @return statement dropping the partition if exists
+     */
+    static String getDropPartitionSql(String tableName, String partition) {
+        return "alter table " + quoteName(tableName) + " drop IF EXISTS partition(" + formatPartition(partition) + ");";
+    }
+
+    /**
+     * Create staging table with the same schema and partition keys as target table,
+     * the staging table is removed by its lifecycle if it is not dropped
+     *
+     * @param odps             odps client
+     * @param projectName      target project name
+     * @param tableName        target table name
+     * @param stagingTableName staging table name
+     * @throws OdpsException
+     */
+    public static void createStagingTable(Odps odps, String projectName, String tableName, String stagingTableName) throws OdpsException {
+        log.info(String.format("Create staging table [%s] like table [%s] of project [%s]", stagingTableName, tableName, projectName));
+        String createStagingTableSql = "create table if not exists " + quoteName(stagingTableName) + " like " + quoteName(tableName) + " lifecycle 7;";
+        try {
+            runSqlTaskWithRetry(odps, createStagingTableSql, MAX_RETRY_TIME, 1000, true);
+        } catch (Exception e) {
+            log.error(String.format("Failed to create staging table [%s] of project [%s]", stagingTableName, projectName));
+            throw new OdpsException(e);
+        }
+    }
+
+    /**
+     * Replace data of target table or partitions with data of staging table in one statement,
+     * readers of target table see either the former data or the new data
+     * With partition spec, the partition is replaced with the same partition of staging table
+     * Without partition spec, a partition table has its partitions in staging table replaced, and a non-partition table is replaced
+     *
+     * @param odps             odps client
+     * @param projectName      target project name
+     * @param tableName        target table name
+     * @param stagingTableName staging table name
+     * @param partition        target table partition spec, null to replace the partitions found in staging table
+     * @throws OdpsException
+     */
+    public static void overwriteWithStagingTable(Odps odps, String projectName, String tableName, String stagingTableName, String partition) throws OdpsException {
+        Table table = odps.tables().get(projectName, tableName);
+        String overwrite = getOverwriteSql(tableName, stagingTableName, getColumnNames(table.getSchema().getColumns()),
+                null == partition ? getColumnNames(table.getSchema().getPartitionColumns()) : Collections.<String>emptyList(), partition);
+        log.info(String.format("Overwrite table [%s] of project [%s] with staging table [%s]", tableName, projectName, stagingTableName));
+        try {
+            runSqlTaskWithRetry(odps, overwrite, MAX_RETRY_TIME, 1000, true);
+        } catch (Exception e) {
+            log.error(String.format("Failed to overwrite table [%s] of project [%s] with staging table [%s]", tableName, projectName, stagingTableName));
+            throw new OdpsException(e);
+        }
+    }
+
+    /**
+     * @param tableName        target table name
+     * @param stagingTableName staging table name
+     * @param columns          data columns of target table
+     * @param partitionKeys    partition keys of target table, empty for non-partition table or with partition spec
+     * @param partition        target table partition spec, null to replace the partitions found in staging table
+     * @return statement replacing target table or partitions with staging table
+     */
+    static String getOverwriteSql(String tableName, String stagingTableName, List<String> columns, List<String> partitionKeys, String partition) {
+        StringBuilder overwrite = new StringBuilder();
+        overwrite.append("insert overwrite table ").append(quoteName(tableName));
+        if (null != partition) {
+            PartitionSpec partitionSpec = new PartitionSpec(partition);
+            overwrite.append(" partition(").append(formatPartition(partition)).append(") select ")
+                    .append(getColumnList(null, columns)).append(" from ").append(quoteName(stagingTableName))
+                    .append(" where ").append(getPartitionCondition(null, partitionSpec));
+        } else if (!partitionKeys.isEmpty()) {
+            overwrite.append(" partition(").append(getColumnList(null, partitionKeys)).append(") select * from ").append(quoteName(stagingTableName));
+        } else {
+            overwrite.append(" select * from ").append(quoteName(stagingTableName));
+        }
+        return overwrite.append(";").toString();
+    }
+
+    /**
+     * Merge data of staging table into target table or partitions by key columns in one statement,
+     * rows of target table with keys found in staging table are replaced, and the other rows are kept
+     * Of rows in staging table with the same keys, only the one with the largest order column is merged
+     * Only the partitions loaded to staging table are rewritten, rows with null keys are never matched and all kept
+     *
+     * @param odps             odps client
+     * @param projectName      target project name
+     * @param tableName        target table name
+     * @param stagingTableName staging table name
+     * @param partition        target table partition spec, null for non-partition table or dynamic partitions
+     * @param partitions       partition specs loaded to staging table with dynamic partitions
+     * @param mergeKeys        key columns of rows
+     * @param orderColumn      column choosing the row kept of the same keys in staging table, any one is kept if null
+     * @throws OdpsException
+     */
+    public static void mergeWithStagingTable(Odps odps, String projectName, String tableName, String stagingTableName,
+                                             String partition, List<String> partitions, List<String> mergeKeys, String orderColumn) throws OdpsException {
+        Table table = odps.tables().get(projectName, tableName);
+        List<String> partitionKeys = null == partition ? getColumnNames(table.getSchema().getPartitionColumns()) : Collections.<String>emptyList();
+        String merge = getMergeSql(tableName, stagingTableName, getColumnNames(table.getSchema().getColumns()), partitionKeys,
+                partition, partitions, mergeKeys, orderColumn);
+        log.info(String.format("Merge staging table [%s] into table [%s] of project [%s] with keys %s", stagingTableName, tableName, projectName, mergeKeys));
+        try {
+            runSqlTaskWithRetry(odps, merge, MAX_RETRY_TIME, 1000, true);
+        } catch (Exception e) {
+            log.error(String.format("Failed to merge staging table [%s] into table [%s] of project [%s]", stagingTableName, tableName, projectName));
+            throw new OdpsException(e);
+        }
+    }
+
+    /**
+     * @param tableName        target table name
+     * @param stagingTableName staging table name
+     * @param dataColumns      data columns of target table
+     * @param partitionKeys    partition keys of target table, empty for non-partition table or with partition spec
+     * @param partition        target table partition spec, null for non-partition table or dynamic partitions
+     * @param partitions       partition specs loaded to staging table with dynamic partitions
+     * @param mergeKeys        key columns of rows
+     * @param orderColumn      column choosing the row kept of the same keys in staging table, any one is kept if null
+     * @return statement merging staging table into target table
+     */
+    static String getMergeSql(String tableName, String stagingTableName, List<String> dataColumns, List<String> partitionKeys,
+                              String partition, List<String> partitions, List<String> mergeKeys, String orderColumn) {
+        List<String> columns = new ArrayList<String>(dataColumns);
+        columns.addAll(partitionKeys);
+        List<String> joinKeys = new ArrayList<String>(mergeKeys);
+        joinKeys.addAll(partitionKeys);
+        List<String> joinConditions = new ArrayList<String>();
+        for (String key : joinKeys) {
+            joinConditions.add("t." + quoteName(key) + " = d." + quoteName(key));
+        }
+        // Rows with a null key are kept as they are never matched, the other rows are numbered within their keys
+        List<String> keptConditions = new ArrayList<String>();
+        keptConditions.add(quoteName(MERGE_ROW_NUMBER) + " = 1");
+        for (String key : mergeKeys) {
+            keptConditions.add(quoteName(key) + " is null");
+        }
+        String orderBy = null == orderColumn ? getColumnList(null, mergeKeys) : quoteName(orderColumn) + " desc";
+
+        String stagingCondition = null;
+        String targetCondition = null;
+        StringBuilder merge = new StringBuilder();
+        merge.append("insert overwrite table ").append(quoteName(tableName));
+        if (null != partition) {
+            PartitionSpec partitionSpec = new PartitionSpec(partition);
+            stagingCondition = getPartitionCondition(null, partitionSpec);
+            targetCondition = getPartitionCondition("t", partitionSpec);
+            merge.append(" partition(").append(formatPartition(partition)).append(")");
+        } else if (!partitionKeys.isEmpty()) {
+            List<String> targetConditions = new ArrayList<String>();
+            for (String stagingPartition : partitions) {
+                targetConditions.add("(" + getPartitionCondition("t", new PartitionSpec(stagingPartition)) + ")");
+            }
+            targetCondition = "(" + StringUtils.join(targetConditions, " or ") + ")";
+            merge.append(" partition(").append(getColumnList(null, partitionKeys)).append(")");
+        }
+        merge.append("\nselect * from (\n  select ").append(getColumnList(null, columns)).append(" from (select ").append(getColumnList(null, columns))
+                .append(", row_number() over (partition by ").append(getColumnList(null, joinKeys)).append(" order by ").append(orderBy)
+                .append(") as ").append(quoteName(MERGE_ROW_NUMBER)).append(" from ").append(quoteName(stagingTableName));
+        if (null != stagingCondition) {
+            merge.append(" where ").append(stagingCondition);
+        }
+        merge.append(") s where ").append(StringUtils.join(keptConditions, " or "))
+                .append("\n  union all\n  select ").append(getColumnList("t", columns)).append(" from ").append(quoteName(tableName)).append(" t")
+                .append("\n  left outer join (select ").append(getColumnList(null, joinKeys)).append(" from ").append(quoteName(stagingTableName));
+        if (null != stagingCondition) {
+            merge.append(" where ").append(stagingCondition);
+        }
+        merge.append(") d on ").append(StringUtils.join(joinConditions, " and "))
+                .append("\n  where d.").append(quoteName(mergeKeys.get(0))).append(" is null");
+        if (null != targetCondition) {
+            merge.append(" and ").append(targetCondition);
+        }
+        return merge.append("\n) merged;").toString();
+    }
+
+    private static List<String> getColumnNames(List<Column> columns) {
+        List<String> names = new ArrayList<String>();
+        for (Column column : columns) {
+            names.add(column.getName());
+        }
+        return names;
+    }
+
+    private static String getColumnList(String alias, List<String> columns) {
+        List<String> quoted = new ArrayList<String>();
+        for (String column : columns) {
+            quoted.add((null == alias ? "" : alias + ".") + quoteName(column));
+        }
+        return StringUtils.join(quoted, ", ");
+    }
+
+    private static String getPartitionCondition(String alias, PartitionSpec partitionSpec) {
+        List<String> conditions = new ArrayList<String>();
+        for (String key : partitionSpec.keys()) {
+            conditions.add((null == alias ? "" : alias + ".") + quoteName(key) + "=" + quoteValue(partitionSpec.get(key)));
+        }
+        return StringUtils.join(conditions, " and ");
+    }
+
+    /**
+     * @param name table, column or partition key name
+     * @return name quoted with backquotes for statements
+     */
+    static String quoteName(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    /**
+     * @param value string value
+     * @return string literal with quotes and backslashes escaped, so the value never ends the literal
+     */
+    static String quoteValue(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /**
+     * @param partition partition spec such as dt='20200101',hh='01'
+     * @return partition spec with quoted keys and values for statements
+     */
+    static String formatPartition(String partition) {
+        PartitionSpec partitionSpec = new PartitionSpec(partition);
+        List<String> parts = new ArrayList<String>();
+        for (String key : partitionSpec.keys()) {
+            parts.add(quoteName(key) + "=" + quoteValue(partitionSpec.get(key)));
+        }
+        return StringUtils.join(parts, ", ");
+    }
+
+    /**
+     * Drop target table if exists
+     *
+     * @param odps        odps client
+     * @param projectName target project name
+     * @param tableName   target table name
+     * @throws OdpsException
+     */
+    public static void dropTable(Odps odps, String projectName, String tableName) throws OdpsException {
+        log.info(String.format("Drop table [%s] of project [%s]", tableName, projectName));
+        String dropTableSql = "drop table if exists " + quoteName(tableName) + ";";
+        try {
+            runSqlTaskWithRetry(odps, dropTableSql, MAX_RETRY_TIME, 1000, true);
+        } catch (Exception e) {
+            log.error(String.format("Failed to drop table [%s] of project [%s]", tableName, projectName));
+            throw new OdpsException(e);
+        }
+    }
+
+    /**
+     * Run ODPS SQL task with retry strategy, only retryable failures are retried
      *
      * @param odps                   odps client
      * @param query                  target sql query
@@ -168,67 +485,248 @@ public class OdpsUtil {
      */
     public static void runSqlTaskWithRetry(final Odps odps, final String query, int retryTimes,
                                            long sleepTimeInMilliSecond, boolean exponential) throws Exception {
-        for (int i = 0; i < retryTimes; i++) {
+        RetryPolicy retryPolicy = new RetryPolicy(retryTimes - 1, sleepTimeInMilliSecond,
+                exponential ? MAX_RETRY_WAIT_MILLIS : sleepTimeInMilliSecond);
+        await(runSqlTaskAsync(odps, query, retryPolicy));
+    }
+
+    /**
+     * Run Odps SQL task
+     *
+     * @param odps  odps client
+     * @param query target sql query
+     * @throws OdpsTaskException
+     */
+    public static void runSqlTask(Odps odps, String query) throws OdpsTaskException {
+        await(runSqlTaskAsync(odps, query, new RetryPolicy(0, 0, 0)));
+    }
+
+    /**
+     * Run independent ODPS SQL tasks at the same time and wait for all of them
+     *
+     * @param odps        odps client
+     * @param queries     target sql queries, no query depends on another
+     * @param retryPolicy retry strategy of each query
+     * @throws OdpsTaskException first failure of the queries, with the others suppressed
+     */
+    public static void runSqlTasks(Odps odps, List<String> queries, RetryPolicy retryPolicy) throws OdpsTaskException {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (String query : queries) {
+            futures.add(runSqlTaskAsync(odps, query, retryPolicy));
+        }
+        OdpsTaskException failure = null;
+        for (CompletableFuture<Void> future : futures) {
             try {
-                runSqlTask(odps, query);
-                return;
+                await(future);
             } catch (OdpsTaskException e) {
-                log.debug("Exception when calling callable", e);
-                if (i + 1 < retryTimes && sleepTimeInMilliSecond > 0) {
-                    log.warn(String.format("will do [%s] times retry, current exception=%s", i + 1, e.getMessage()));
-                    long timeToSleep;
-                    if (exponential) {
-                        timeToSleep = sleepTimeInMilliSecond * (long) Math.pow(2, i);
-                    } else {
-                        timeToSleep = sleepTimeInMilliSecond;
-                    }
-                    if (timeToSleep >= 128 * 1000) {
-                        timeToSleep = 128 * 1000;
-                    }
-
-                    try {
-                        Thread.sleep(timeToSleep);
-                    } catch (InterruptedException ignored) {
-                    }
+                if (null == failure) {
+                    failure = e;
                 } else {
-                    throw e;
+                    failure.addSuppressed(e);
                 }
-
-            } catch (Exception e) {
-                throw e;
             }
         }
+        if (null != failure) {
+            throw failure;
+        }
     }
 
     /**
-     * Run Odps SQL task
+     * Submit ODPS SQL task without blocking, status of the task is polled by a scheduler shared by all tasks
+     * Failures of requests and failed tasks are retried with the retry policy unless they are not retryable,
+     * and a cancelled future stops the running task
      *
-     * @param odps  odps client
-     * @param query target sql query
-     * @throws OdpsTaskException
+     * @param odps        odps client
+     * @param query       target sql query
+     * @param retryPolicy retry strategy
+     * @return future completed when the task succeeds, or completed exceptionally with OdpsTaskException
      */
-    public static void runSqlTask(Odps odps, String query) throws OdpsTaskException {
+    public static CompletableFuture<Void> runSqlTaskAsync(Odps odps, String query, RetryPolicy retryPolicy) {
         if (StringUtils.isBlank(query)) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
+        SqlTaskRun run = new SqlTaskRun(odps, query, retryPolicy);
+        getSqlTaskScheduler().execute(run);
+        return run.future;
+    }
 
-        String taskName = "odps_task_" + UUID.randomUUID().toString().replace('-', '_');
+    private static void await(CompletableFuture<Void> future) throws OdpsTaskException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new OdpsTaskException("Interrupted while waiting for ODPS SQL task", e, false);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OdpsTaskException) {
+                throw (OdpsTaskException) e.getCause();
+            }
+            throw new OdpsTaskException(e.getCause().getMessage(), e.getCause());
+        }
+    }
 
-        log.info(String.format("Try to start sqlTask:[%s] to run odps sql:[\n%s\n] .", taskName, query));
+    private static synchronized ScheduledExecutorService getSqlTaskScheduler() {
+        if (null == sqlTaskScheduler) {
+            sqlTaskScheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "maxcompute-sql-task");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sqlTaskScheduler;
+    }
 
-        Instance instance;
-        Instance.TaskStatus status;
-        try {
-            instance = SQLTask.run(odps, odps.getDefaultProject(), query, taskName, null, null);
-            instance.waitForSuccess();
-            status = instance.getTaskStatus().get(taskName);
-            if (!Instance.TaskStatus.Status.SUCCESS.equals(status.getStatus())) {
-                throw new OdpsTaskException(String.format("Failed to run ODPS SQL task with status : [%s] and sql : [\n%s\n]", status, query));
+    /**
+     * @param e failure of a request to ODPS
+     * @return false if the request is rejected by ODPS for itself, true for network and service errors
+     */
+    private static boolean isRetryable(OdpsException e) {
+        String code = e.getErrorCode();
+        if (null == code) {
+            return true;
+        }
+        for (String nonRetryableCode : NON_RETRYABLE_ERROR_CODES) {
+            if (nonRetryableCode.equals(code)) {
+                return false;
             }
-        } catch (OdpsTaskException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new OdpsTaskException(String.format("Failed to run ODPS SQL task with sql : [\n%s\n] and related exception message: [\n%s\n]", query, e.getMessage()));
+        }
+        return isRetryableResult(code);
+    }
+
+    /**
+     * @param result result message of a failed sql task
+     * @return false if the sql is wrong or not allowed, true for errors of the service
+     */
+    private static boolean isRetryableResult(String result) {
+        if (null == result) {
+            return true;
+        }
+        for (String nonRetryableCode : NON_RETRYABLE_RESULT_CODES) {
+            if (result.contains(nonRetryableCode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One ODPS SQL task with its retries, each run on the scheduler submits the task or polls its status once
+     */
+    private static class SqlTaskRun implements Runnable {
+
+        private final Odps odps;
+        private final String query;
+        private final RetryPolicy retryPolicy;
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        private int retry;
+        private int pollFailures;
+        private String taskName;
+        private Instance instance;
+        private long startTime;
+        private long pollMillis;
+
+        SqlTaskRun(Odps odps, String query, RetryPolicy retryPolicy) {
+            this.odps = odps;
+            this.query = query;
+            this.retryPolicy = retryPolicy;
+        }
+
+        @Override
+        public void run() {
+            if (future.isCancelled()) {
+                stop();
+                return;
+            }
+            try {
+                if (null == instance) {
+                    taskName = "odps_task_" + UUID.randomUUID().toString().replace('-', '_');
+                    log.info(String.format("Try to start sqlTask:[%s] to run odps sql:[\n%s\n] .", taskName, query));
+                    startTime = System.nanoTime();
+                    pollMillis = MIN_POLL_MILLIS;
+                    try {
+                        instance = SQLTask.run(odps, odps.getDefaultProject(), query, taskName, null, null);
+                    } catch (OdpsException e) {
+                        throw new OdpsTaskException(String.format("Failed to run ODPS SQL task with sql : [\n%s\n] and related exception message: [\n%s\n]", query, e.getMessage()), e, isRetryable(e));
+                    }
+                } else if (isTerminated()) {
+                    checkSuccess();
+                    finish();
+                    future.complete(null);
+                    return;
+                }
+                getSqlTaskScheduler().schedule(this, pollMillis, TimeUnit.MILLISECONDS);
+                pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+            } catch (OdpsTaskException e) {
+                retryOrFail(e);
+            } catch (Exception e) {
+                retryOrFail(new OdpsTaskException(String.format("Failed to run ODPS SQL task with sql : [\n%s\n] and related exception message: [\n%s\n]", query, e.getMessage()), e));
+            }
+        }
+
+        /**
+         * @return true if the instance is terminated, a failed poll is tried again instead of running the sql again
+         */
+        private boolean isTerminated() {
+            try {
+                boolean terminated = instance.isTerminated();
+                pollFailures = 0;
+                return terminated;
+            } catch (RuntimeException e) {
+                pollFailures += 1;
+                if (pollFailures > retryPolicy.getRetryLimit()) {
+                    throw e;
+                }
+                log.warn(String.format("Failed to get status of sqlTask:[%s], will poll again: %s", taskName, e.getMessage()));
+                return false;
+            }
+        }
+
+        private void checkSuccess() throws OdpsException, OdpsTaskException {
+            Instance.TaskStatus status = instance.getTaskStatus().get(taskName);
+            if (null == status || !Instance.TaskStatus.Status.SUCCESS.equals(status.getStatus())) {
+                String result = instance.getTaskResults().get(taskName);
+                boolean retryable = null != status && Instance.TaskStatus.Status.FAILED.equals(status.getStatus()) && isRetryableResult(result);
+                throw new OdpsTaskException(String.format("Failed to run ODPS SQL task with status : [%s] and sql : [\n%s\n] and result : [\n%s\n]",
+                        null == status ? null : status.getStatus(), query, result), null, retryable);
+            }
+        }
+
+        private void finish() {
+            if (null == instance && null == taskName) {
+                return;
+            }
+            long elapsedNanos = System.nanoTime() - startTime;
+            UploadMetrics.global().addSqlTask(elapsedNanos);
+            log.info(String.format("Finished sqlTask:[%s] in [%s] ms", taskName, elapsedNanos / 1000000));
+            instance = null;
+            taskName = null;
+            pollFailures = 0;
+        }
+
+        private void retryOrFail(OdpsTaskException e) {
+            finish();
+            if (e.isRetryable() && retry < retryPolicy.getRetryLimit() && !future.isDone()) {
+                long waitMillis = retryPolicy.getWaitMillis(retry);
+                retry += 1;
+                log.warn(String.format("will do [%s] times retry after [%s] ms, current exception=%s", retry, waitMillis, e.getMessage()));
+                getSqlTaskScheduler().schedule(this, waitMillis, TimeUnit.MILLISECONDS);
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void stop() {
+            if (null != instance) {
+                try {
+                    instance.stop();
+                } catch (OdpsException e) {
+                    log.warn(String.format("Failed to stop sqlTask:[%s]: %s", taskName, e.getMessage()));
+                }
+            }
+            finish();
         }
     }
 }
@@ -0,0 +1,118 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.*;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Partition key whose value is derived from one input column of each record
+ */
+public abstract class PartitionColumn {
+
+    protected final String name;
+    protected final Column column;
+
+    protected PartitionColumn(String name, Column column) {
+        this.name = name;
+        this.column = column;
+    }
+
+    /**
+     * @return target partition key name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get partition value of current record in page reader
+     *
+     * @param reader page reader pointing to current record
+     * @return partition value
+     */
+    public String getValue(PageReader reader) {
+        if (reader.isNull(column)) {
+            throw new UnsupportedOperationException(String.format("Value of input column [%s] for partition [%s] must not be null", column.getName(), name));
+        }
+        return formatValue(reader);
+    }
+
+    protected abstract String formatValue(PageReader reader);
+
+    /**
+     * Compile partition column configurations with input schema
+     *
+     * @param tasks  partition column configurations
+     * @param schema input schema
+     * @return partition columns in configuration order
+     */
+    public static PartitionColumn[] compile(List<MaxcomputeOutputPlugin.PartitionColumnTask> tasks, Schema schema) {
+        PartitionColumn[] partitionColumns = new PartitionColumn[tasks.size()];
+        for (int i = 0; i < tasks.size(); i++) {
+            MaxcomputeOutputPlugin.PartitionColumnTask task = tasks.get(i);
+            String columnName = task.getColumn().isPresent() ? task.getColumn().get() : task.getName();
+            Column column = null;
+            for (Column inputColumn : schema.getColumns()) {
+                if (inputColumn.getName().equals(columnName)) {
+                    column = inputColumn;
+                    break;
+                }
+            }
+            if (null == column) {
+                throw new UnsupportedOperationException(String.format("No such input column [%s] for partition [%s]", columnName, task.getName()));
+            }
+
+            Type type = column.getType();
+            if (type instanceof TimestampType) {
+                DateTimeFormatter formatter = DateTimeFormatter.ofPattern(task.getFormat()).withZone(ZoneId.of(task.getTimezone()));
+                partitionColumns[i] = new TimestampPartitionColumn(task.getName(), column, formatter);
+            } else if (type instanceof StringType) {
+                partitionColumns[i] = new PartitionColumn(task.getName(), column) {
+                    @Override
+                    protected String formatValue(PageReader reader) {
+                        return reader.getString(column);
+                    }
+                };
+            } else if (type instanceof LongType) {
+                partitionColumns[i] = new PartitionColumn(task.getName(), column) {
+                    @Override
+                    protected String formatValue(PageReader reader) {
+                        return Long.toString(reader.getLong(column));
+                    }
+                };
+            } else if (type instanceof BooleanType) {
+                partitionColumns[i] = new PartitionColumn(task.getName(), column) {
+                    @Override
+                    protected String formatValue(PageReader reader) {
+                        return Boolean.toString(reader.getBoolean(column));
+                    }
+                };
+            } else {
+                throw new UnsupportedOperationException(String.format("Type [%s] of input column [%s] is not supported for partition [%s]", type.getName(), columnName, task.getName()));
+            }
+        }
+        return partitionColumns;
+    }
+
+    static final class TimestampPartitionColumn extends PartitionColumn {
+        private final DateTimeFormatter formatter;
+
+        TimestampPartitionColumn(String name, Column column, DateTimeFormatter formatter) {
+            super(name, column);
+            this.formatter = formatter;
+        }
+
+        @Override
+        protected String formatValue(PageReader reader) {
+            Timestamp timestamp = reader.getTimestamp(column);
+            return formatter.format(Instant.ofEpochSecond(timestamp.getEpochSecond(), timestamp.getNano()));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.Odps;
+import com.aliyun.odps.OdpsException;
+import com.aliyun.odps.Partition;
+import com.aliyun.odps.PartitionSpec;
+import com.aliyun.odps.Table;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Existing partitions of one table, shared by the tasks of a job running in the same JVM
+ * A few partitions are checked with a direct lookup each, all partitions are listed once
+ * only when more partitions must be checked at the same time
+ */
+public class PartitionIndex {
+
+    private static final int DIRECT_LOOKUP_LIMIT = 16;
+
+    private static final ConcurrentMap<String, PartitionIndex> indexes = new ConcurrentHashMap<String, PartitionIndex>();
+
+    private final Logger log = Exec.getLogger(PartitionIndex.class);
+
+    private final Table table;
+    private final Set<String> partitions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean loaded;
+
+    private PartitionIndex(Table table) {
+        this.table = table;
+    }
+
+    /**
+     * Get the partition index of target table
+     *
+     * @param odps        odps client
+     * @param projectName target project name
+     * @param tableName   target table name
+     * @return partition index
+     */
+    public static PartitionIndex of(Odps odps, String projectName, String tableName) {
+        String key = projectName + "." + tableName;
+        PartitionIndex index = indexes.get(key);
+        if (null == index) {
+            PartitionIndex newIndex = new PartitionIndex(odps.tables().get(projectName, tableName));
+            index = indexes.putIfAbsent(key, newIndex);
+            if (null == index) {
+                index = newIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drop the cached partitions of target table, called at the beginning of each job
+     *
+     * @param projectName target project name
+     * @param tableName   target table name
+     */
+    public static void invalidate(String projectName, String tableName) {
+        indexes.remove(projectName + "." + tableName);
+    }
+
+    /**
+     * Normalize partition spec, so that "pt=1" and "pt='1'" are the same partition
+     *
+     * @param partition partition spec
+     * @return normalized partition spec
+     */
+    public static String normalize(String partition) {
+        return new PartitionSpec(partition).toString();
+    }
+
+    /**
+     * Filter out existing partitions
+     *
+     * @param candidates partition specs to check
+     * @return partition specs which do not exist
+     * @throws OdpsException
+     */
+    public List<String> filterMissing(Collection<String> candidates) throws OdpsException {
+        if (!loaded && candidates.size() > DIRECT_LOOKUP_LIMIT) {
+            load();
+        }
+        List<String> missing = new ArrayList<String>();
+        for (String candidate : candidates) {
+            String partition = normalize(candidate);
+            if (partitions.contains(partition)) {
+                continue;
+            }
+            if (!loaded && table.hasPartition(new PartitionSpec(partition))) {
+                partitions.add(partition);
+                continue;
+            }
+            missing.add(candidate);
+        }
+        return missing;
+    }
+
+    /**
+     * Record partitions created by this job
+     *
+     * @param created created partition specs
+     */
+    public void addAll(Collection<String> created) {
+        for (String partition : created) {
+            partitions.add(normalize(partition));
+        }
+    }
+
+    private synchronized void load() throws OdpsException {
+        if (loaded) {
+            return;
+        }
+        long count = 0;
+        try {
+            Iterator<Partition> iterator = table.getPartitionIterator();
+            while (iterator.hasNext()) {
+                partitions.add(iterator.next().getPartitionSpec().toString());
+                count += 1;
+            }
+        } catch (RuntimeException e) {
+            throw new OdpsException(e);
+        }
+        loaded = true;
+        log.info(String.format("Loaded [%s] partitions of table [%s]", count, table.getName()));
+    }
+}
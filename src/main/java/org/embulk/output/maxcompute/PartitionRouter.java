@@ -0,0 +1,318 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.Odps;
+import com.aliyun.odps.OdpsException;
+import com.aliyun.odps.PartitionSpec;
+import com.aliyun.odps.data.Record;
+import com.aliyun.odps.tunnel.TableTunnel;
+import com.aliyun.odps.tunnel.TunnelException;
+import com.aliyun.odps.tunnel.io.CompressOption;
+import org.apache.commons.lang3.StringUtils;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageReader;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Route records to upload sessions of the partitions derived from input columns
+ * Each partition gets its own upload session, which is committed in transaction with the reports of all tasks,
+ * another upload session is created for the partition once block ids of its session are used up
+ * Writers of recently used partitions are kept open, the least recently used one is flushed when more than maxOpenPartitions are open
+ * Partitions first seen in a page are created together with one statement when the page is finished,
+ * partitions which already exist are skipped with the shared partition index
+ * When the memory budget of block buffers is exhausted, open writers of this task are flushed before waiting for others
+ * With more than one upload thread, each open writer uploads its blocks with its own uploader pool
+ */
+public class PartitionRouter {
+
+    private final Logger log = Exec.getLogger(PartitionRouter.class);
+
+    private final Odps odps;
+    private final TableTunnel tableTunnel;
+    private final String projectName;
+    private final String tableName;
+    private final PartitionColumn[] partitionColumns;
+    private final BlockSizeController blockSizeController;
+    private final long blockRecordLimit;
+    private final CompressOption compressOption;
+    private final int uploadThreads;
+    private final int maxInflightBlocks;
+    private final RetryPolicy retryPolicy;
+    private final File spillDirectory;
+    private final UploadMetrics metrics;
+    private final MemoryBudget memoryBudget;
+    private final int maxOpenPartitions;
+    private final PartitionIndex partitionIndex;
+    private final Map<String, PartitionUpload> uploads = new HashMap<String, PartitionUpload>();
+    private final LinkedHashMap<String, PartitionUpload> openUploads = new LinkedHashMap<String, PartitionUpload>(16, 0.75f, true);
+    private final Map<String, PendingPartition> pendingPartitions = new LinkedHashMap<String, PendingPartition>();
+    private final String[] values;
+    private String[] lastValues;
+    private PartitionUpload lastUpload;
+
+    /**
+     * @param odps                odps client
+     * @param tableTunnel         table tunnel to create upload sessions
+     * @param projectName         target project name
+     * @param tableName           target table name
+     * @param partitionColumns    partition columns in partition key order
+     * @param blockSizeController bytes of each block
+     * @param blockRecordLimit    max records of one block, no limit if not positive
+     * @param compressOption      compression of blocks
+     * @param uploadThreads       count of threads uploading blocks of each open partition
+     * @param maxInflightBlocks   max count of full blocks waiting for or under uploading of each open partition
+     * @param retryPolicy         retries of failed blocks
+     * @param spillDirectory      directory of failed blocks while retrying, kept in memory if null
+     * @param maxOpenPartitions   max count of partitions with open writer
+     * @param metrics             metrics of the task
+     * @param memoryBudget        budget of block buffers in the JVM, not limited if null
+     */
+    public PartitionRouter(Odps odps, TableTunnel tableTunnel, String projectName, String tableName,
+                           PartitionColumn[] partitionColumns, BlockSizeController blockSizeController, long blockRecordLimit,
+                           CompressOption compressOption, int uploadThreads, int maxInflightBlocks, RetryPolicy retryPolicy,
+                           File spillDirectory, int maxOpenPartitions, UploadMetrics metrics, MemoryBudget memoryBudget) {
+        this.odps = odps;
+        this.tableTunnel = tableTunnel;
+        this.projectName = projectName;
+        this.tableName = tableName;
+        this.partitionColumns = partitionColumns;
+        this.blockSizeController = blockSizeController;
+        this.blockRecordLimit = blockRecordLimit;
+        this.compressOption = compressOption;
+        this.uploadThreads = uploadThreads;
+        this.maxInflightBlocks = maxInflightBlocks;
+        this.retryPolicy = retryPolicy;
+        this.spillDirectory = spillDirectory;
+        this.metrics = metrics;
+        this.memoryBudget = memoryBudget;
+        this.maxOpenPartitions = Math.max(maxOpenPartitions, 1);
+        this.values = new String[partitionColumns.length];
+        this.partitionIndex = PartitionIndex.of(odps, projectName, tableName);
+    }
+
+    /**
+     * Write converted record to the partition of current record in page reader
+     * Record of a partition not created yet is kept until the page is finished
+     *
+     * @param reader page reader pointing to current record
+     * @param record converted record
+     * @throws IOException
+     */
+    public void write(PageReader reader, Record record) throws IOException {
+        for (int i = 0; i < partitionColumns.length; i++) {
+            values[i] = partitionColumns[i].getValue(reader);
+        }
+        // Input is usually ordered by partition, so the partition of last record is checked first
+        if (null != lastUpload && Arrays.equals(values, lastValues)) {
+            openUploads.get(lastUpload.partition);
+            lastUpload.writer.write(record);
+            return;
+        }
+
+        PartitionSpec partitionSpec = new PartitionSpec();
+        for (int i = 0; i < partitionColumns.length; i++) {
+            partitionSpec.set(partitionColumns[i].getName(), values[i]);
+        }
+        String partition = partitionSpec.toString();
+        PartitionUpload upload = uploads.get(partition);
+        if (null == upload) {
+            PendingPartition pendingPartition = pendingPartitions.get(partition);
+            if (null == pendingPartition) {
+                checkPartitionValues();
+                pendingPartition = new PendingPartition(partitionSpec);
+                pendingPartitions.put(partition, pendingPartition);
+            }
+            // Values shared by column writers are copied, the record is written after the partition is created
+            pendingPartition.records.add(ColumnWriter.copyRecord(record));
+            return;
+        }
+        openWriter(upload).write(record);
+        lastValues = values.clone();
+        lastUpload = upload;
+    }
+
+    /**
+     * Partitions are reported as partition spec strings, which are parsed again without unescaping,
+     * so values with quotes, commas, equal signs or backslashes could not be kept
+     */
+    private void checkPartitionValues() {
+        for (int i = 0; i < partitionColumns.length; i++) {
+            if (StringUtils.containsAny(values[i], "'\",=\\")) {
+                throw new UnsupportedOperationException(String.format("Value [%s] of partition [%s] must not contain quotes, commas, equal signs or backslashes",
+                        values[i], partitionColumns[i].getName()));
+            }
+        }
+    }
+
+    /**
+     * Create partitions first seen in current page with one statement, and write their records
+     *
+     * @throws IOException
+     */
+    public void finishPage() throws IOException {
+        if (pendingPartitions.isEmpty()) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        try {
+            List<String> missingPartitions = partitionIndex.filterMissing(pendingPartitions.keySet());
+            if (!missingPartitions.isEmpty()) {
+                OdpsUtil.addPartitions(odps, projectName, tableName, missingPartitions);
+                partitionIndex.addAll(missingPartitions);
+            }
+        } catch (OdpsException e) {
+            throw new IOException(String.format("Failed to add partitions for table [%s] of project [%s]", tableName, projectName), e);
+        } finally {
+            metrics.addBlockedNanos(System.nanoTime() - startTime);
+        }
+        for (Map.Entry<String, PendingPartition> entry : pendingPartitions.entrySet()) {
+            PartitionUpload upload = new PartitionUpload(entry.getKey(), entry.getValue().partitionSpec);
+            upload.uploadSession = createUploadSession(upload);
+            uploads.put(entry.getKey(), upload);
+            BlockRecordWriter writer = openWriter(upload);
+            for (Record record : entry.getValue().records) {
+                writer.write(record);
+            }
+        }
+        pendingPartitions.clear();
+    }
+
+    private TableTunnel.UploadSession createUploadSession(PartitionUpload upload) throws IOException {
+        long sessionStartTime = System.nanoTime();
+        try {
+            TableTunnel.UploadSession uploadSession = tableTunnel.createUploadSession(projectName, tableName, upload.partitionSpec);
+            long sessionNanos = System.nanoTime() - sessionStartTime;
+            metrics.addSession(sessionNanos);
+            metrics.addBlockedNanos(sessionNanos);
+            log.info(String.format("Created upload session [%s] for partition [%s]", uploadSession.getId(), upload.partition));
+            return uploadSession;
+        } catch (TunnelException e) {
+            throw new IOException(String.format("Failed to create upload session for partition [%s]", upload.partition), e);
+        }
+    }
+
+    private BlockRecordWriter openWriter(final PartitionUpload upload) throws IOException {
+        if (null != openUploads.get(upload.partition)) {
+            return upload.writer;
+        }
+        if (openUploads.size() >= maxOpenPartitions) {
+            closeEldestWriter();
+        }
+        // Buffers held by this task are only released by flushing its partitions, so they are not waited for
+        while (null != memoryBudget && !openUploads.isEmpty()
+                && !memoryBudget.isAvailable(MemoryBudget.getBufferBytes(blockSizeController.getBlockSize()))) {
+            closeEldestWriter();
+        }
+        BlockRecordWriter.UploadSessionFactory uploadSessionFactory = new BlockRecordWriter.UploadSessionFactory() {
+            @Override
+            public TableTunnel.UploadSession createUploadSession() throws IOException {
+                return PartitionRouter.this.createUploadSession(upload);
+            }
+        };
+        upload.writer = new BlockRecordWriter(upload.uploadSession, upload.nextBlockId, 1, uploadSessionFactory, blockSizeController,
+                blockRecordLimit, compressOption, uploadThreads, maxInflightBlocks, retryPolicy, spillDirectory, metrics, memoryBudget);
+        openUploads.put(upload.partition, upload);
+        return upload.writer;
+    }
+
+    private void closeEldestWriter() throws IOException {
+        Iterator<PartitionUpload> eldest = openUploads.values().iterator();
+        PartitionUpload evicted = eldest.next();
+        eldest.remove();
+        closeWriter(evicted);
+    }
+
+    private void closeWriter(PartitionUpload upload) throws IOException {
+        upload.writer.close();
+        for (UploadSessionReport report : upload.writer.getReports(upload.partition)) {
+            upload.addReport(report);
+        }
+        // Next writer of the partition continues with the last session of this writer
+        upload.uploadSession = upload.writer.getUploadSession();
+        upload.nextBlockId = upload.writer.getNextBlockId();
+        upload.writer = null;
+        if (lastUpload == upload) {
+            lastUpload = null;
+        }
+    }
+
+    /**
+     * Flush all open writers
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        finishPage();
+        for (PartitionUpload upload : openUploads.values()) {
+            closeWriter(upload);
+        }
+        openUploads.clear();
+    }
+
+    /**
+     * Stop all open writers without flushing
+     */
+    public void abort() {
+        for (PartitionUpload upload : openUploads.values()) {
+            upload.writer.abort();
+        }
+        openUploads.clear();
+    }
+
+    /**
+     * @return blocks uploaded to each partition
+     */
+    public List<UploadSessionReport> getReports() {
+        List<UploadSessionReport> reports = new ArrayList<UploadSessionReport>();
+        for (PartitionUpload upload : uploads.values()) {
+            for (Map.Entry<String, List<Long>> entry : upload.blockIds.entrySet()) {
+                reports.add(new UploadSessionReport(upload.partition, entry.getKey(),
+                        entry.getValue().toArray(new Long[entry.getValue().size()]), upload.recordCounts.get(entry.getKey())));
+            }
+        }
+        return reports;
+    }
+
+    private static class PartitionUpload {
+        private final String partition;
+        private final PartitionSpec partitionSpec;
+        // Block ids and record counts by upload session id, writers of the partition may use more than one session
+        private final Map<String, List<Long>> blockIds = new LinkedHashMap<String, List<Long>>();
+        private final Map<String, Long> recordCounts = new HashMap<String, Long>();
+        private TableTunnel.UploadSession uploadSession;
+        private long nextBlockId;
+        private BlockRecordWriter writer;
+
+        private PartitionUpload(String partition, PartitionSpec partitionSpec) {
+            this.partition = partition;
+            this.partitionSpec = partitionSpec;
+        }
+
+        private void addReport(UploadSessionReport report) {
+            if (!blockIds.containsKey(report.getUploadSessionId())) {
+                blockIds.put(report.getUploadSessionId(), new ArrayList<Long>());
+                recordCounts.put(report.getUploadSessionId(), 0L);
+            }
+            blockIds.get(report.getUploadSessionId()).addAll(Arrays.asList(report.getBlockIds()));
+            recordCounts.put(report.getUploadSessionId(), recordCounts.get(report.getUploadSessionId()) + report.getRecordCount());
+        }
+    }
+
+    private static class PendingPartition {
+        private final PartitionSpec partitionSpec;
+        private final List<Record> records = new ArrayList<Record>();
+
+        private PendingPartition(PartitionSpec partitionSpec) {
+            this.partitionSpec = partitionSpec;
+        }
+    }
+}
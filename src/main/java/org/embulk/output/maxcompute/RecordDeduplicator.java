@@ -0,0 +1,189 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Drop records whose key columns were seen before in the same task
+ *
+ * Each record is reduced to a 64-bit fingerprint of its key values, kept in a FingerprintSet bounded in memory.
+ * Distinct keys with the same fingerprint are taken as duplicates, which is unlikely below billions of keys
+ */
+public class RecordDeduplicator implements Closeable {
+
+    private static final int LONG = 0;
+    private static final int DOUBLE = 1;
+    private static final int BOOLEAN = 2;
+    private static final int STRING = 3;
+    private static final int TIMESTAMP = 4;
+    private static final int JSON = 5;
+
+    private static final long SEED = 0x2545f4914f6cdd1dL;
+    private static final long NULL_VALUE = 0x6a09e667f3bcc909L;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Column[] keys;
+    private final int[] keyTypes;
+    private final FingerprintSet fingerprints;
+    private long droppedRecords;
+
+    /**
+     * @param keys           key columns of input schema
+     * @param memoryBytes    max bytes of fingerprints in memory
+     * @param spillDirectory directory of spilled fingerprints, temporary directory if null
+     */
+    public RecordDeduplicator(Column[] keys, long memoryBytes, File spillDirectory) {
+        this.keys = keys;
+        this.keyTypes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keyTypes[i] = getKeyType(keys[i]);
+        }
+        this.fingerprints = new FingerprintSet(memoryBytes, spillDirectory);
+    }
+
+    /**
+     * Compile dedup keys with input schema
+     *
+     * @param names  input column names
+     * @param schema input schema
+     * @return key columns in configuration order
+     */
+    public static Column[] compileKeys(List<String> names, Schema schema) {
+        Column[] keys = new Column[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            for (Column inputColumn : schema.getColumns()) {
+                if (inputColumn.getName().equals(names.get(i))) {
+                    keys[i] = inputColumn;
+                    break;
+                }
+            }
+            if (null == keys[i]) {
+                throw new UnsupportedOperationException(String.format("No such input column [%s] for dedupKeys", names.get(i)));
+            }
+            getKeyType(keys[i]);
+        }
+        return keys;
+    }
+
+    private static int getKeyType(Column column) {
+        Type type = column.getType();
+        if (type instanceof LongType) {
+            return LONG;
+        } else if (type instanceof DoubleType) {
+            return DOUBLE;
+        } else if (type instanceof BooleanType) {
+            return BOOLEAN;
+        } else if (type instanceof StringType) {
+            return STRING;
+        } else if (type instanceof TimestampType) {
+            return TIMESTAMP;
+        } else if (type instanceof JsonType) {
+            return JSON;
+        }
+        throw new UnsupportedOperationException(String.format("Type [%s] of input column [%s] is not supported for dedupKeys", type.getName(), column.getName()));
+    }
+
+    /**
+     * Check current record, the first record of each key is kept
+     *
+     * @param reader page reader pointing to current record
+     * @return true if a record with the same keys was seen before, the record is counted as dropped
+     * @throws IOException
+     */
+    public boolean isDuplicate(PageReader reader) throws IOException {
+        if (fingerprints.add(fingerprint(reader))) {
+            return false;
+        }
+        droppedRecords += 1;
+        return true;
+    }
+
+    /**
+     * @return count of records found to be duplicates
+     */
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * @return count of distinct keys
+     */
+    public long getKeys() {
+        return fingerprints.size();
+    }
+
+    /**
+     * @return count of run files of spilled fingerprints
+     */
+    public int getRuns() {
+        return fingerprints.getRuns();
+    }
+
+    @Override
+    public void close() {
+        fingerprints.close();
+    }
+
+    private long fingerprint(PageReader reader) {
+        long hash = SEED;
+        for (int i = 0; i < keys.length; i++) {
+            Column key = keys[i];
+            long value;
+            if (reader.isNull(key)) {
+                value = NULL_VALUE;
+            } else {
+                switch (keyTypes[i]) {
+                    case LONG:
+                        value = reader.getLong(key);
+                        break;
+                    case DOUBLE:
+                        value = Double.doubleToLongBits(reader.getDouble(key));
+                        break;
+                    case BOOLEAN:
+                        value = reader.getBoolean(key) ? 1 : 0;
+                        break;
+                    case STRING:
+                        value = hashChars(reader.getString(key));
+                        break;
+                    case TIMESTAMP:
+                        Timestamp timestamp = reader.getTimestamp(key);
+                        value = mix(timestamp.getEpochSecond()) ^ timestamp.getNano();
+                        break;
+                    default:
+                        value = hashChars(reader.getJson(key).toJson());
+                        break;
+                }
+            }
+            // Position of the key is mixed in, so values moved between keys give other fingerprints
+            hash = mix(hash ^ mix(value + i));
+        }
+        return hash;
+    }
+
+    private static long hashChars(String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash ^ value.length());
+    }
+
+    // Finalizer of MurmurHash3, every input bit affects every output bit
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
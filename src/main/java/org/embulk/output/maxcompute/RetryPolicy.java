@@ -0,0 +1,52 @@
+package org.embulk.output.maxcompute;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Retry count and exponential backoff of remote operations
+ */
+public class RetryPolicy {
+
+    private final int retryLimit;
+    private final long retryWaitMillis;
+    private final long maxRetryWaitMillis;
+
+    /**
+     * @param retryLimit         max count of retries after the first failure
+     * @param retryWaitMillis    wait before the first retry, doubled for each following retry
+     * @param maxRetryWaitMillis max wait before one retry
+     */
+    public RetryPolicy(int retryLimit, long retryWaitMillis, long maxRetryWaitMillis) {
+        this.retryLimit = Math.max(retryLimit, 0);
+        this.retryWaitMillis = Math.max(retryWaitMillis, 0);
+        this.maxRetryWaitMillis = Math.max(maxRetryWaitMillis, this.retryWaitMillis);
+    }
+
+    public int getRetryLimit() {
+        return retryLimit;
+    }
+
+    /**
+     * @param retry retry count starting from 0
+     * @return wait before the retry
+     */
+    public long getWaitMillis(int retry) {
+        long wait = retryWaitMillis << Math.min(retry, 30);
+        return wait < 0 || wait > maxRetryWaitMillis ? maxRetryWaitMillis : wait;
+    }
+
+    /**
+     * Wait before the retry
+     *
+     * @param retry retry count starting from 0
+     * @throws InterruptedIOException
+     */
+    public void await(int retry) throws InterruptedIOException {
+        try {
+            Thread.sleep(getWaitMillis(retry));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for retry");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.tunnel.io.Checksum;
+import com.aliyun.odps.tunnel.io.ProtobufRecordPack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Encoded block kept in a local file while it is retried, so the buffer of the block can be reused for next records
+ * The tunnel sends the file content as it is, records are not encoded again
+ */
+public class SpilledRecordPack extends ProtobufRecordPack {
+
+    private final File file;
+    private final long length;
+
+    private SpilledRecordPack(TableSchema schema, BlockRecordPack pack, File file, long length) throws IOException {
+        super(schema, new Checksum(), pack.getCompressOption());
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Write the encoded block to a new file in spill directory
+     *
+     * @param schema         table schema of the upload session
+     * @param pack           block to spill
+     * @param spillDirectory directory of the file
+     * @return spilled block
+     * @throws IOException
+     */
+    public static SpilledRecordPack spill(TableSchema schema, BlockRecordPack pack, File spillDirectory) throws IOException {
+        pack.complete();
+        File file = File.createTempFile("maxcompute-block-", ".spill", spillDirectory);
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            pack.getProtobufStream().writeTo(out);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return new SpilledRecordPack(schema, pack, file, file.length());
+    }
+
+    @Override
+    public ByteArrayOutputStream getProtobufStream() {
+        return new ByteArrayOutputStream(0) {
+            @Override
+            public synchronized void writeTo(OutputStream out) throws IOException {
+                Files.copy(file.toPath(), out);
+            }
+
+            @Override
+            public synchronized int size() {
+                return (int) length;
+            }
+        };
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return length;
+    }
+
+    /**
+     * Remove the spill file
+     */
+    public void delete() {
+        file.delete();
+    }
+}
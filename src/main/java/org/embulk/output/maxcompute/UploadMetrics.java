@@ -0,0 +1,253 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one task, reported in task report to find whether a job is bound by conversion, network or ODPS
+ * Every counter is also added to the JVM-wide metrics, which could be exported with JMX while the job is running
+ *
+ * - convertNanos: time of the writing thread converting and encoding records
+ * - uploadNanos: time of sending blocks including retries, in uploader threads when pipelined
+ * - blockedNanos: time of the writing thread waiting for block uploads, free buffers, upload sessions and partitions
+ * - droppedRecords: records dropped as duplicates of dedupKeys, not counted in records
+ * - sqlTasks, sqlNanos: SQL tasks run by OdpsUtil, only counted in the JVM-wide metrics
+ */
+public class UploadMetrics implements UploadMetricsMXBean {
+
+    private static final UploadMetrics GLOBAL = new UploadMetrics(null);
+    private static final String OBJECT_NAME = "org.embulk.output.maxcompute:type=UploadMetrics";
+    private static boolean registered;
+
+    private final UploadMetrics parent;
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong convertNanos = new AtomicLong();
+    private final AtomicLong uploadNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong sessionNanos = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final AtomicLong sqlTasks = new AtomicLong();
+    private final AtomicLong sqlNanos = new AtomicLong();
+
+    /**
+     * Metrics of one task
+     */
+    public UploadMetrics() {
+        this(GLOBAL);
+    }
+
+    private UploadMetrics(UploadMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return metrics of all tasks running in the JVM
+     */
+    public static UploadMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Export the JVM-wide metrics with JMX, registered once in the JVM
+     */
+    public static synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        Logger log = Exec.getLogger(UploadMetrics.class);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(GLOBAL, name);
+            }
+            registered = true;
+            log.info(String.format("Registered upload metrics as MBean [%s]", OBJECT_NAME));
+        } catch (JMException e) {
+            log.warn(String.format("Failed to register upload metrics as MBean [%s]: %s", OBJECT_NAME, e.getMessage()));
+        }
+    }
+
+    public void addRecords(long count) {
+        records.addAndGet(count);
+        if (null != parent) {
+            parent.addRecords(count);
+        }
+    }
+
+    public void addRawBytes(long bytes) {
+        rawBytes.addAndGet(bytes);
+        if (null != parent) {
+            parent.addRawBytes(bytes);
+        }
+    }
+
+    public void addUploadedBlock(long bytes) {
+        blocks.incrementAndGet();
+        uploadedBytes.addAndGet(bytes);
+        if (null != parent) {
+            parent.addUploadedBlock(bytes);
+        }
+    }
+
+    public void addRetry() {
+        retries.incrementAndGet();
+        if (null != parent) {
+            parent.addRetry();
+        }
+    }
+
+    public void addConvertNanos(long nanos) {
+        convertNanos.addAndGet(nanos);
+        if (null != parent) {
+            parent.addConvertNanos(nanos);
+        }
+    }
+
+    public void addUploadNanos(long nanos) {
+        uploadNanos.addAndGet(nanos);
+        if (null != parent) {
+            parent.addUploadNanos(nanos);
+        }
+    }
+
+    public void addBlockedNanos(long nanos) {
+        blockedNanos.addAndGet(nanos);
+        if (null != parent) {
+            parent.addBlockedNanos(nanos);
+        }
+    }
+
+    public void addSession(long nanos) {
+        sessions.incrementAndGet();
+        sessionNanos.addAndGet(nanos);
+        if (null != parent) {
+            parent.addSession(nanos);
+        }
+    }
+
+    public void addDroppedRecords(long count) {
+        droppedRecords.addAndGet(count);
+        if (null != parent) {
+            parent.addDroppedRecords(count);
+        }
+    }
+
+    public void addSqlTask(long nanos) {
+        sqlTasks.incrementAndGet();
+        sqlNanos.addAndGet(nanos);
+        if (null != parent) {
+            parent.addSqlTask(nanos);
+        }
+    }
+
+    @Override
+    public long getRecords() {
+        return records.get();
+    }
+
+    @Override
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    @Override
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    @Override
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getConvertNanos() {
+        return convertNanos.get();
+    }
+
+    @Override
+    public long getUploadNanos() {
+        return uploadNanos.get();
+    }
+
+    @Override
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+
+    @Override
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public long getSessionNanos() {
+        return sessionNanos.get();
+    }
+
+    @Override
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    @Override
+    public long getSqlTasks() {
+        return sqlTasks.get();
+    }
+
+    @Override
+    public long getSqlNanos() {
+        return sqlNanos.get();
+    }
+
+    /**
+     * @return counters by name except SQL tasks, set to task report
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("records", getRecords());
+        map.put("rawBytes", getRawBytes());
+        map.put("uploadedBytes", getUploadedBytes());
+        map.put("blocks", getBlocks());
+        map.put("retries", getRetries());
+        map.put("convertNanos", getConvertNanos());
+        map.put("uploadNanos", getUploadNanos());
+        map.put("blockedNanos", getBlockedNanos());
+        map.put("sessions", getSessions());
+        map.put("sessionNanos", getSessionNanos());
+        map.put("droppedRecords", getDroppedRecords());
+        return map;
+    }
+
+    /**
+     * Sum counters reported by tasks
+     *
+     * @param total   sum of counters by name
+     * @param metrics counters of one task by name
+     */
+    public static void merge(Map<String, Long> total, Map<String, ? extends Number> metrics) {
+        for (Map.Entry<String, ? extends Number> entry : metrics.entrySet()) {
+            Long value = total.get(entry.getKey());
+            total.put(entry.getKey(), (null == value ? 0 : value) + entry.getValue().longValue());
+        }
+    }
+}
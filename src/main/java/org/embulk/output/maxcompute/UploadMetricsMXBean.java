@@ -0,0 +1,33 @@
+package org.embulk.output.maxcompute;
+
+/**
+ * Upload metrics of all tasks running in the JVM, exported with JMX
+ */
+public interface UploadMetricsMXBean {
+
+    long getRecords();
+
+    long getRawBytes();
+
+    long getUploadedBytes();
+
+    long getBlocks();
+
+    long getRetries();
+
+    long getConvertNanos();
+
+    long getUploadNanos();
+
+    long getBlockedNanos();
+
+    long getSessions();
+
+    long getSessionNanos();
+
+    long getDroppedRecords();
+
+    long getSqlTasks();
+
+    long getSqlNanos();
+}
@@ -0,0 +1,52 @@
+package org.embulk.output.maxcompute;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Blocks uploaded by one task to one upload session, reported to transaction for the final commit
+ */
+public class UploadSessionReport {
+
+    private final String partition;
+    private final String uploadSessionId;
+    private final Long[] blockIds;
+    private final long recordCount;
+
+    /**
+     * @param partition       partition spec of the upload session, null for non-partition table
+     * @param uploadSessionId upload session id
+     * @param blockIds        ids of uploaded blocks
+     * @param recordCount     count of uploaded records
+     */
+    @JsonCreator
+    public UploadSessionReport(@JsonProperty("partition") String partition,
+                               @JsonProperty("uploadSessionId") String uploadSessionId,
+                               @JsonProperty("blockIds") Long[] blockIds,
+                               @JsonProperty("recordCount") long recordCount) {
+        this.partition = partition;
+        this.uploadSessionId = uploadSessionId;
+        this.blockIds = blockIds;
+        this.recordCount = recordCount;
+    }
+
+    @JsonProperty("partition")
+    public String getPartition() {
+        return partition;
+    }
+
+    @JsonProperty("uploadSessionId")
+    public String getUploadSessionId() {
+        return uploadSessionId;
+    }
+
+    @JsonProperty("blockIds")
+    public Long[] getBlockIds() {
+        return blockIds;
+    }
+
+    @JsonProperty("recordCount")
+    public long getRecordCount() {
+        return recordCount;
+    }
+}
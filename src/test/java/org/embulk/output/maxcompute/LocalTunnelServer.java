@@ -0,0 +1,247 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.TableSchema;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in of the ODPS tunnel service for tests and benchmarks without an ODPS account,
+ * set its url as tunnelUrl of the plugin so the SDK sends upload sessions and blocks to it
+ *
+ * Only the requests of upload sessions are answered, for any project and table:
+ * - POST ?uploads: create a session of the given schema
+ * - GET ?uploadid: reload a session with its uploaded blocks
+ * - PUT ?uploadid&blockid: read and drop the block, or hand it to the block handler
+ * - POST ?uploadid: commit a session
+ */
+public class LocalTunnelServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String schemaJson;
+    private final ConcurrentMap<String, Set<Long>> sessions = new ConcurrentHashMap<String, Set<Long>>();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile BlockHandler blockHandler;
+
+    /**
+     * @param schema schema of every table
+     * @throws IOException
+     */
+    public LocalTunnelServer(TableSchema schema) throws IOException {
+        this.schemaJson = toJson(schema);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // Blocks are received concurrently as the tunnel service does, for pipelined upload
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "local-tunnel-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return endpoint for both odpsUrl and tunnelUrl
+     */
+    public String getUrl() {
+        return String.format("http://%s:%s", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * @param blockHandler handler of each received block, blocks are dropped without reading them if null
+     */
+    public void setBlockHandler(BlockHandler blockHandler) {
+        this.blockHandler = blockHandler;
+    }
+
+    /**
+     * @return count of all received blocks
+     */
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    /**
+     * @return bytes of all received blocks as sent, compressed if compression is set
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        String uploadId = params.get("uploadid");
+        if (null == uploadId) {
+            if ("POST".equals(method) && params.containsKey("uploads")) {
+                uploadId = UUID.randomUUID().toString().replace("-", "");
+                sessions.put(uploadId, new TreeSet<Long>());
+                sendSession(exchange, uploadId, "NORMAL");
+            } else {
+                sendError(exchange, 400, "InvalidArgument");
+            }
+            return;
+        }
+        Set<Long> blockIds = sessions.get(uploadId);
+        if (null == blockIds) {
+            sendError(exchange, 404, "NoSuchUpload");
+        } else if ("PUT".equals(method) && params.containsKey("blockid")) {
+            long blockId = Long.parseLong(params.get("blockid"));
+            long length;
+            BlockHandler handler = blockHandler;
+            if (null == handler) {
+                length = drain(exchange.getRequestBody());
+            } else {
+                byte[] body = readAll(exchange.getRequestBody());
+                length = body.length;
+                try {
+                    handler.handle(uploadId, blockId, body);
+                } catch (IOException e) {
+                    sendError(exchange, 500, "InternalServerError");
+                    return;
+                }
+            }
+            synchronized (blockIds) {
+                blockIds.add(blockId);
+            }
+            blocks.incrementAndGet();
+            bytes.addAndGet(length);
+            send(exchange, 200, new byte[0]);
+        } else if ("GET".equals(method)) {
+            sendSession(exchange, uploadId, "NORMAL");
+        } else if ("POST".equals(method)) {
+            sendSession(exchange, uploadId, "CLOSED");
+        } else {
+            sendError(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void sendSession(HttpExchange exchange, String uploadId, String status) throws IOException {
+        Set<Long> blockIds = sessions.get(uploadId);
+        StringBuilder json = new StringBuilder();
+        json.append("{\"UploadID\":\"").append(uploadId).append("\",\"Status\":\"").append(status).append("\",\"UploadedBlockList\":[");
+        synchronized (blockIds) {
+            boolean first = true;
+            for (Long blockId : blockIds) {
+                json.append(first ? "" : ",").append("{\"BlockID\":").append(blockId).append("}");
+                first = false;
+            }
+        }
+        json.append("],\"Schema\":").append(schemaJson).append("}");
+        send(exchange, 200, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        drain(exchange.getRequestBody());
+        String json = String.format("{\"Code\":\"%s\",\"Message\":\"%s %s\"}", code, exchange.getRequestMethod(), exchange.getRequestURI());
+        send(exchange, status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            length += n;
+        }
+        return length;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (null == query) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int i = param.indexOf('=');
+            params.put(i < 0 ? param : param.substring(0, i), i < 0 ? "" : param.substring(i + 1));
+        }
+        return params;
+    }
+
+    private static String toJson(TableSchema schema) {
+        StringBuilder json = new StringBuilder("{\"columns\":[");
+        boolean first = true;
+        for (com.aliyun.odps.Column column : schema.getColumns()) {
+            json.append(first ? "" : ",").append("{\"name\":\"").append(column.getName())
+                    .append("\",\"type\":\"").append(column.getType().name().toLowerCase()).append("\"}");
+            first = false;
+        }
+        return json.append("],\"partitionKeys\":[]}").toString();
+    }
+
+    /**
+     * Handler of received blocks, called by server threads before the block is added to its session
+     */
+    public interface BlockHandler {
+        /**
+         * @param uploadId upload session id
+         * @param blockId  block id
+         * @param body     block as sent, compressed if compression is set
+         * @throws IOException to answer the request with an error, the block is not added then
+         */
+        void handle(String uploadId, long blockId, byte[] body) throws IOException;
+    }
+}
@@ -0,0 +1,561 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.Column;
+import com.aliyun.odps.Odps;
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.account.AliyunAccount;
+import com.aliyun.odps.data.Record;
+import com.aliyun.odps.tunnel.TableTunnel;
+import com.aliyun.odps.tunnel.TunnelException;
+import com.aliyun.odps.tunnel.io.CompressOption;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBlockRecordWriter {
+
+    private static final long BLOCK_SIZE = 1 << 20;
+    private static final long RECORDS_PER_BLOCK = 10;
+    private static final long BUFFER_BYTES = MemoryBudget.getBufferBytes(BLOCK_SIZE);
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalTunnelServer server;
+    private TableTunnel tunnel;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        TableSchema schema = new TableSchema();
+        schema.addColumn(new Column("id", OdpsType.BIGINT));
+        schema.addColumn(new Column("name", OdpsType.STRING));
+        server = new LocalTunnelServer(schema);
+        server.start();
+        Odps odps = new Odps(new AliyunAccount("accessKeyId", "accessKeySecret"));
+        odps.setEndpoint(server.getUrl());
+        odps.setDefaultProject("project");
+        tunnel = new TableTunnel(odps);
+        tunnel.setEndpoint(server.getUrl());
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    @Test(timeout = 60000)
+    public void testBlockIdsOfTask() throws Exception {
+        for (int uploadThreads : new int[]{1, 3}) {
+            TableTunnel.UploadSession session = createUploadSession();
+            // Task 2 of 5 tasks sharing the session
+            BlockRecordWriter writer = newWriter(session, 2, 5, null, uploadThreads, 2, null);
+            write(writer, session, 35);
+            writer.close();
+
+            List<UploadSessionReport> reports = writer.getReports(null);
+            assertEquals(1, reports.size());
+            assertEquals(session.getId(), reports.get(0).getUploadSessionId());
+            assertEquals(Arrays.asList(2L, 7L, 12L, 17L), sorted(reports.get(0).getBlockIds()));
+            assertEquals(35, reports.get(0).getRecordCount());
+            assertEquals(Arrays.asList(2L, 7L, 12L, 17L), getBlockList(session));
+            assertEquals(22, writer.getNextBlockId());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testUploadFailureOnWriterThread() throws Exception {
+        server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+            @Override
+            public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                if (blockId == 7) {
+                    throw new IOException("Failed block");
+                }
+            }
+        });
+        TableTunnel.UploadSession session = createUploadSession();
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        BlockRecordWriter writer = newWriter(session, 0, 1, null, 3, 2, budget);
+        IOException failure = null;
+        try {
+            write(writer, session, 200);
+            writer.close();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            writer.abort();
+        }
+        // Failure of an uploader thread is thrown by a later write or close of the writing thread
+        assertNotNull(failure);
+        assertTrue(failure.getMessage(), failure.getMessage().contains("Failed to upload block [7]"));
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test(timeout = 60000)
+    public void testRecordPacksBounded() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger uploading = new AtomicInteger();
+        server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+            @Override
+            public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                uploading.incrementAndGet();
+                await(release);
+            }
+        });
+        final TableTunnel.UploadSession session = createUploadSession();
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        final BlockRecordWriter writer = newWriter(session, 0, 1, null, 4, 2, budget);
+        Future<Void> writing = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                write(writer, session, 100);
+                writer.close();
+                return null;
+            }
+        });
+
+        // 3 blocks are under uploading with free upload threads, then the writer waits for one of their buffers
+        waitFor(uploading, 3);
+        Thread.sleep(500);
+        assertEquals(3, uploading.get());
+        assertFalse(writing.isDone());
+        assertEquals(3 * BUFFER_BYTES, budget.getUsed());
+
+        release.countDown();
+        writing.get();
+        assertEquals(10, getBlockList(session).size());
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test(timeout = 60000)
+    public void testAbortWaitsForUploads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger uploading = new AtomicInteger();
+        server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+            @Override
+            public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                uploading.incrementAndGet();
+                await(release);
+            }
+        });
+        TableTunnel.UploadSession session = createUploadSession();
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        final BlockRecordWriter writer = newWriter(session, 0, 1, null, 2, 2, budget);
+        write(writer, session, 15);
+        waitFor(uploading, 1);
+        assertEquals(2 * BUFFER_BYTES, budget.getUsed());
+
+        Future<?> aborting = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                writer.abort();
+            }
+        });
+        // The buffer under uploading is not released until its upload stops
+        Thread.sleep(500);
+        assertFalse(aborting.isDone());
+        assertEquals(2 * BUFFER_BYTES, budget.getUsed());
+
+        release.countDown();
+        aborting.get();
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test(timeout = 60000)
+    public void testOverflowSession() throws Exception {
+        final List<TableTunnel.UploadSession> createdSessions = Collections.synchronizedList(new ArrayList<TableTunnel.UploadSession>());
+        BlockRecordWriter.UploadSessionFactory factory = new BlockRecordWriter.UploadSessionFactory() {
+            @Override
+            public TableTunnel.UploadSession createUploadSession() throws IOException {
+                TableTunnel.UploadSession session = TestBlockRecordWriter.this.createUploadSession();
+                createdSessions.add(session);
+                return session;
+            }
+        };
+        TableTunnel.UploadSession session = createUploadSession();
+        BlockRecordWriter writer = newWriter(session, BlockRecordWriter.MAX_BLOCK_ID - 2, 1, factory, 2, 2, null);
+        write(writer, session, 45);
+        writer.close();
+
+        // Blocks past the last block id continue from 0 with a new session
+        assertEquals(1, createdSessions.size());
+        TableTunnel.UploadSession overflow = createdSessions.get(0);
+        assertNotEquals(session.getId(), overflow.getId());
+        assertEquals(overflow.getId(), writer.getUploadSession().getId());
+        assertEquals(3, writer.getNextBlockId());
+
+        List<UploadSessionReport> reports = writer.getReports("dt='1'");
+        assertEquals(2, reports.size());
+        assertEquals(session.getId(), reports.get(0).getUploadSessionId());
+        assertEquals(Arrays.asList(BlockRecordWriter.MAX_BLOCK_ID - 2, BlockRecordWriter.MAX_BLOCK_ID - 1), sorted(reports.get(0).getBlockIds()));
+        assertEquals(20, reports.get(0).getRecordCount());
+        assertEquals(overflow.getId(), reports.get(1).getUploadSessionId());
+        assertEquals(Arrays.asList(0L, 1L, 2L), sorted(reports.get(1).getBlockIds()));
+        assertEquals(25, reports.get(1).getRecordCount());
+        assertEquals("dt='1'", reports.get(1).getPartition());
+        assertEquals(Arrays.asList(0L, 1L, 2L), getBlockList(overflow));
+    }
+
+    @Test(timeout = 60000)
+    public void testBlockIdsUsedUpWithoutFactory() throws Exception {
+        TableTunnel.UploadSession session = createUploadSession();
+        BlockRecordWriter writer = newWriter(session, BlockRecordWriter.MAX_BLOCK_ID - 1, 1, null, 1, 2, null);
+        try {
+            write(writer, session, 20);
+            writer.close();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Block count exceeds the limit"));
+            return;
+        } finally {
+            writer.abort();
+        }
+        throw new AssertionError("Block ids used up without session factory");
+    }
+
+    @Test(timeout = 60000)
+    public void testRetriedBlockIsSame() throws Exception {
+        // In memory by the writing thread, in memory by an uploader thread, and spilled by an uploader thread
+        Object[][] modes = {{1, null}, {2, null}, {2, folder.newFolder()}};
+        for (Object[] mode : modes) {
+            final File spillDirectory = (File) mode[1];
+            final List<byte[]> attempts = Collections.synchronizedList(new ArrayList<byte[]>());
+            final List<Integer> spillFiles = Collections.synchronizedList(new ArrayList<Integer>());
+            server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+                @Override
+                public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                    attempts.add(body);
+                    if (null != spillDirectory) {
+                        spillFiles.add(spillDirectory.listFiles().length);
+                    }
+                    if (attempts.size() == 1) {
+                        throw new IOException("Transient failure");
+                    }
+                }
+            });
+            TableTunnel.UploadSession session = createUploadSession();
+            BlockRecordWriter writer = newWriter(session, 0, 1, null, (Integer) mode[0], 2, new RetryPolicy(3, 10, 10), spillDirectory, null);
+            write(writer, session, 10);
+            writer.close();
+
+            assertEquals(2, attempts.size());
+            assertTrue(attempts.get(0).length > 0);
+            assertArrayEquals(attempts.get(0), attempts.get(1));
+            assertEquals(Collections.singletonList(0L), getBlockList(session));
+            if (null != spillDirectory) {
+                // Spilled after the first failure, and deleted once uploaded
+                assertEquals(Arrays.asList(0, 1), spillFiles);
+                assertEquals(0, spillDirectory.listFiles().length);
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRetryLimit() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+            @Override
+            public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                attempts.incrementAndGet();
+                throw new IOException("Failure");
+            }
+        });
+        File spillDirectory = folder.newFolder();
+        TableTunnel.UploadSession session = createUploadSession();
+        BlockRecordWriter writer = newWriter(session, 0, 1, null, 2, 2, new RetryPolicy(2, 10, 10), spillDirectory, null);
+        write(writer, session, 10);
+        try {
+            writer.close();
+            throw new AssertionError("Failed block is committed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Failed to upload block [0] after [2] retries"));
+        } finally {
+            writer.abort();
+        }
+        // The first attempt and 2 retries
+        assertEquals(3, attempts.get());
+        assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test(timeout = 60000)
+    public void testSpillDeletedOnAbort() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+            @Override
+            public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IOException("Transient failure");
+                }
+                await(release);
+            }
+        });
+        File spillDirectory = folder.newFolder();
+        TableTunnel.UploadSession session = createUploadSession();
+        final BlockRecordWriter writer = newWriter(session, 0, 1, null, 2, 2, new RetryPolicy(3, 10, 10), spillDirectory, null);
+        write(writer, session, 10);
+        writer.flush();
+        waitFor(attempts, 2);
+        assertEquals(1, spillDirectory.listFiles().length);
+
+        Future<?> aborting = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                writer.abort();
+            }
+        });
+        Thread.sleep(200);
+        release.countDown();
+        aborting.get();
+        assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test(timeout = 60000)
+    public void testResume() throws Exception {
+        for (boolean skipUploadedBlocks : new boolean[]{true, false}) {
+            server.setBlockHandler(null);
+            // Former attempt of 2 tasks sharing the session, task 1 uploaded blocks 1, 3 and 5
+            TableTunnel.UploadSession session = createUploadSession();
+            BlockRecordWriter former0 = newWriter(session, 0, 2, null, 1, 2, null);
+            write(former0, session, 50);
+            former0.close();
+            BlockRecordWriter former1 = newWriter(session, 1, 2, null, 1, 2, null);
+            write(former1, session, 30);
+            former1.close();
+            List<Long> sessionBlockIds = getBlockList(session);
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 8L), sessionBlockIds);
+
+            final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+            final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+            server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+                @Override
+                public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                    received.add(blockId);
+                    bodies.add(body);
+                }
+            });
+            // Task 1 is resumed with fewer records, so its block 5 is stale
+            TableTunnel.UploadSession resumed = tunnel.getUploadSession("project", "table", session.getId());
+            BlockRecordWriter writer = newWriter(resumed, 1, 2, null, 2, 2, null);
+            writer.setExistingBlockIds(sessionBlockIds);
+            if (skipUploadedBlocks) {
+                writer.skipUploadedBlocks(sessionBlockIds);
+            }
+            write(writer, resumed, 20);
+            writer.close();
+
+            // Blocks of task 0 are neither skipped nor overwritten
+            if (skipUploadedBlocks) {
+                assertEquals(Collections.singletonList(5L), received);
+            } else {
+                assertEquals(Arrays.asList(1L, 3L, 5L), sorted(received.toArray(new Long[received.size()])));
+            }
+            BlockRecordPack emptyPack = new BlockRecordPack(resumed.getSchema(), new CompressOption(CompressOption.CompressAlgorithm.ODPS_RAW, 0, 0));
+            emptyPack.complete();
+            assertArrayEquals(emptyPack.getProtobufStream().toByteArray(), bodies.get(received.indexOf(5L)));
+            List<UploadSessionReport> reports = writer.getReports(null);
+            assertEquals(1, reports.size());
+            assertEquals(Arrays.asList(1L, 3L, 5L), sorted(reports.get(0).getBlockIds()));
+            assertEquals(20, reports.get(0).getRecordCount());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testRecordPacksLimitedByBudget() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger uploading = new AtomicInteger();
+        server.setBlockHandler(new LocalTunnelServer.BlockHandler() {
+            @Override
+            public void handle(String uploadId, long blockId, byte[] body) throws IOException {
+                uploading.incrementAndGet();
+                await(release);
+            }
+        });
+        final TableTunnel.UploadSession session = createUploadSession();
+        // Room for one buffer and a half, the second buffer is never created
+        MemoryBudget budget = new MemoryBudget(BUFFER_BYTES * 3 / 2);
+        final BlockRecordWriter writer = newWriter(session, 0, 1, null, 4, 2, budget);
+        Future<Void> writing = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                write(writer, session, 30);
+                writer.close();
+                return null;
+            }
+        });
+
+        waitFor(uploading, 1);
+        Thread.sleep(500);
+        assertEquals(1, uploading.get());
+        assertFalse(writing.isDone());
+        assertEquals(BUFFER_BYTES, budget.getUsed());
+
+        release.countDown();
+        writing.get();
+        assertEquals(Arrays.asList(0L, 1L, 2L), getBlockList(session));
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test(timeout = 60000)
+    public void testResizedRecordPack() throws Exception {
+        TableTunnel.UploadSession session = createUploadSession();
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        SettableBlockSizeController controller = new SettableBlockSizeController(BLOCK_SIZE);
+        BlockRecordWriter writer = newWriter(session, 0, 1, null, controller, 1, 2, new RetryPolicy(0, 0, 0), null, budget);
+        assertEquals(BUFFER_BYTES, budget.getUsed());
+
+        // Buffer of the next block is replaced once the block size has changed by more than 25%
+        controller.blockSize = 4 * BLOCK_SIZE;
+        write(writer, session, 10);
+        assertEquals(MemoryBudget.getBufferBytes(4 * BLOCK_SIZE), budget.getUsed());
+
+        controller.blockSize = 5 * BLOCK_SIZE;
+        write(writer, session, 10);
+        assertEquals(MemoryBudget.getBufferBytes(4 * BLOCK_SIZE), budget.getUsed());
+
+        writer.close();
+        assertEquals(Arrays.asList(0L, 1L), getBlockList(session));
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test(timeout = 60000)
+    public void testResizedFreeRecordPack() throws Exception {
+        TableTunnel.UploadSession session = createUploadSession();
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        SettableBlockSizeController controller = new SettableBlockSizeController(BLOCK_SIZE);
+        // Two buffers, the writer takes turns with them
+        BlockRecordWriter writer = newWriter(session, 0, 1, null, controller, 2, 1, new RetryPolicy(0, 0, 0), null, budget);
+        write(writer, session, 20);
+        assertEquals(2 * BUFFER_BYTES, budget.getUsed());
+
+        // The free buffer of the former size is dropped and a buffer of the new size is created,
+        // the buffer under uploading keeps its budget until it is dropped too
+        controller.blockSize = 4 * BLOCK_SIZE;
+        write(writer, session, 10);
+        assertEquals(BUFFER_BYTES + MemoryBudget.getBufferBytes(4 * BLOCK_SIZE), budget.getUsed());
+
+        write(writer, session, 10);
+        writer.close();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), getBlockList(session));
+        assertEquals(0, budget.getUsed());
+    }
+
+    private BlockRecordWriter newWriter(TableTunnel.UploadSession session, long firstBlockId, long blockIdStep,
+                                        BlockRecordWriter.UploadSessionFactory factory, int uploadThreads, int maxInflightBlocks,
+                                        MemoryBudget budget) throws IOException {
+        return newWriter(session, firstBlockId, blockIdStep, factory, uploadThreads, maxInflightBlocks, new RetryPolicy(0, 0, 0), null, budget);
+    }
+
+    private BlockRecordWriter newWriter(TableTunnel.UploadSession session, long firstBlockId, long blockIdStep,
+                                        BlockRecordWriter.UploadSessionFactory factory, int uploadThreads, int maxInflightBlocks,
+                                        RetryPolicy retryPolicy, File spillDirectory, MemoryBudget budget) throws IOException {
+        return newWriter(session, firstBlockId, blockIdStep, factory, BlockSizeController.fixed(BLOCK_SIZE), uploadThreads, maxInflightBlocks,
+                retryPolicy, spillDirectory, budget);
+    }
+
+    private BlockRecordWriter newWriter(TableTunnel.UploadSession session, long firstBlockId, long blockIdStep,
+                                        BlockRecordWriter.UploadSessionFactory factory, BlockSizeController blockSizeController,
+                                        int uploadThreads, int maxInflightBlocks,
+                                        RetryPolicy retryPolicy, File spillDirectory, MemoryBudget budget) throws IOException {
+        return new BlockRecordWriter(session, firstBlockId, blockIdStep, factory, blockSizeController, RECORDS_PER_BLOCK,
+                new CompressOption(CompressOption.CompressAlgorithm.ODPS_RAW, 0, 0), uploadThreads, maxInflightBlocks,
+                retryPolicy, spillDirectory, new UploadMetrics(), budget);
+    }
+
+    private TableTunnel.UploadSession createUploadSession() throws IOException {
+        try {
+            return tunnel.createUploadSession("project", "table");
+        } catch (TunnelException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void write(BlockRecordWriter writer, TableTunnel.UploadSession session, int count) throws IOException {
+        Record record = session.newRecord();
+        for (int i = 0; i < count; i++) {
+            record.setBigint(0, (long) i);
+            record.setString(1, "value" + i);
+            writer.write(record);
+        }
+    }
+
+    private List<Long> getBlockList(TableTunnel.UploadSession session) throws Exception {
+        return sorted(tunnel.getUploadSession("project", "table", session.getId()).getBlockList());
+    }
+
+    private static List<Long> sorted(Long[] blockIds) {
+        List<Long> sorted = new ArrayList<Long>(Arrays.asList(blockIds));
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static void waitFor(AtomicInteger count, int expected) throws InterruptedException {
+        while (count.get() < expected) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Block size set by the test instead of upload time
+     */
+    private static class SettableBlockSizeController extends BlockSizeController {
+
+        private volatile long blockSize;
+
+        SettableBlockSizeController(long blockSize) {
+            super(1, Long.MAX_VALUE);
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public long getBlockSize() {
+            return blockSize;
+        }
+
+        @Override
+        public synchronized long nextBlockSize() {
+            return blockSize;
+        }
+
+        @Override
+        public synchronized void addSample(long bytes, long nanos) {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBlockSizeController {
+
+    private static final long MB = 1 << 20;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testFixed() {
+        BlockSizeController controller = BlockSizeController.fixed(4 * MB);
+        assertFalse(controller.isAdaptive());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(4 * MB, controller.nextBlockSize());
+        }
+        addSamples(controller, 1000000000L, 1, 8);
+        assertEquals(4 * MB, controller.getBlockSize());
+    }
+
+    @Test
+    public void testProbeBlocks() {
+        BlockSizeController controller = new BlockSizeController(MB, 16 * MB);
+        assertTrue(controller.isAdaptive());
+        long[] sizes = {MB, MB, MB, MB / 2, MB, MB, MB, MB / 2};
+        for (long size : sizes) {
+            assertEquals(size, controller.nextBlockSize());
+        }
+    }
+
+    @Test
+    public void testGrowsToMax() {
+        // 1 s round trip with 1 GB/s throughput, blocks of GBs would be best
+        BlockSizeController controller = new BlockSizeController(MB, 16 * MB);
+        assertEquals(MB, controller.getBlockSize());
+        // At most twice at each adjustment
+        long[] sizes = {2 * MB, 4 * MB, 8 * MB, 16 * MB, 16 * MB, 16 * MB};
+        for (long size : sizes) {
+            addSamples(controller, 1000000000L, 1, 1);
+            assertEquals(size, controller.getBlockSize());
+        }
+    }
+
+    @Test
+    public void testShrinksToMin() {
+        BlockSizeController controller = new BlockSizeController(MB, 16 * MB);
+        addSamples(controller, 1000000000L, 1, 4);
+        assertEquals(16 * MB, controller.getBlockSize());
+        // No fixed cost, smaller blocks only save memory
+        addSamples(controller, 0, 10, 16);
+        assertEquals(MB, controller.getBlockSize());
+    }
+
+    @Test
+    public void testConverges() {
+        // 10 ms round trip with 100 MB/s throughput, fixed cost is 10% of upload time for 9 MB blocks
+        long target = 9 * 10000000L / 10;
+        BlockSizeController controller = new BlockSizeController(MB, 1024 * MB);
+        addSamples(controller, 10000000L, 10, 8);
+        long blockSize = controller.getBlockSize();
+        assertTrue(String.valueOf(blockSize), Math.abs(blockSize - target) * 4 <= blockSize);
+        // Stays there, changes within 25% are ignored
+        addSamples(controller, 10000000L, 10, 8);
+        assertEquals(blockSize, controller.getBlockSize());
+
+        // Converges to the same size from above
+        controller = new BlockSizeController(MB, 1024 * MB);
+        addSamples(controller, 1000000000L, 1, 6);
+        assertEquals(64 * MB, controller.getBlockSize());
+        // Samples of the former link are dropped from the fit after four rounds
+        addSamples(controller, 10000000L, 10, 12);
+        blockSize = controller.getBlockSize();
+        assertTrue(String.valueOf(blockSize), Math.abs(blockSize - target) * 4 <= blockSize);
+    }
+
+    @Test
+    public void testConstantUploadTime() {
+        BlockSizeController controller = new BlockSizeController(MB, 16 * MB);
+        addSamples(controller, 50000000L, 0, 1);
+        assertEquals(2 * MB, controller.getBlockSize());
+    }
+
+    @Test
+    public void testSameSizeSamples() {
+        // Fixed cost cannot be told from throughput without blocks of different sizes
+        BlockSizeController controller = new BlockSizeController(MB, 16 * MB);
+        for (int i = 0; i < 16; i++) {
+            controller.addSample(MB, 1000000000L + MB);
+        }
+        assertEquals(MB, controller.getBlockSize());
+    }
+
+    /**
+     * Add samples of blocks uploaded in fixedNanos + bytes * nanosPerByte, a probe block of half size of each four blocks
+     * as the writer does, so each round of four samples adjusts the block size once
+     */
+    private static void addSamples(BlockSizeController controller, long fixedNanos, long nanosPerByte, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            long blockSize = controller.getBlockSize();
+            for (int i = 1; i <= 4; i++) {
+                long bytes = i % 4 == 0 ? blockSize / 2 : blockSize;
+                controller.addSample(bytes, fixedNanos + bytes * nanosPerByte);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import com.aliyun.odps.data.ArrayRecord;
+import com.aliyun.odps.data.Record;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestColumnWriter {
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testStringInput() {
+        assertEquals("abc", write(Types.STRING, column(OdpsType.STRING), "abc").getString(0));
+        assertEquals(Long.valueOf(42), write(Types.STRING, column(OdpsType.BIGINT), " 42 ").getBigint(0));
+        assertEquals(Double.valueOf(1.5), write(Types.STRING, column(OdpsType.DOUBLE), "1.5").getDouble(0));
+        assertEquals(new BigDecimal("12.345"), write(Types.STRING, column(OdpsType.DECIMAL), "12.345").getDecimal(0));
+        assertEquals(Boolean.TRUE, write(Types.STRING, column(OdpsType.BOOLEAN), "TRUE").getBoolean(0));
+        assertEquals(Boolean.FALSE, write(Types.STRING, column(OdpsType.BOOLEAN), "false").getBoolean(0));
+    }
+
+    @Test
+    public void testEmptyStringToTypedColumnIsNull() {
+        for (OdpsType type : Arrays.asList(OdpsType.BIGINT, OdpsType.DOUBLE, OdpsType.DECIMAL, OdpsType.BOOLEAN)) {
+            assertNull(write(Types.STRING, column(type), "  ").get(0));
+        }
+        assertEquals("", write(Types.STRING, column(OdpsType.STRING), "").getString(0));
+    }
+
+    @Test
+    public void testInvalidStringFails() {
+        assertConversionFails(Types.STRING, column(OdpsType.BIGINT), "abc");
+        assertConversionFails(Types.STRING, column(OdpsType.BIGINT), "1.5");
+        assertConversionFails(Types.STRING, column(OdpsType.BIGINT), "99999999999999999999");
+        assertConversionFails(Types.STRING, column(OdpsType.BIGINT), "-9223372036854775808");
+        assertConversionFails(Types.STRING, column(OdpsType.DOUBLE), "1,5");
+        assertConversionFails(Types.STRING, column(OdpsType.DECIMAL), "1.2.3");
+        assertConversionFails(Types.STRING, column(OdpsType.BOOLEAN), "yes");
+    }
+
+    @Test
+    public void testBooleanInput() {
+        assertEquals(Boolean.TRUE, write(Types.BOOLEAN, column(OdpsType.BOOLEAN), true).getBoolean(0));
+        assertEquals(Long.valueOf(1), write(Types.BOOLEAN, column(OdpsType.BIGINT), true).getBigint(0));
+        assertEquals(Long.valueOf(0), write(Types.BOOLEAN, column(OdpsType.BIGINT), false).getBigint(0));
+        assertEquals("false", write(Types.BOOLEAN, column(OdpsType.STRING), false).getString(0));
+    }
+
+    @Test
+    public void testLongInput() {
+        assertEquals(Long.valueOf(Long.MAX_VALUE), write(Types.LONG, column(OdpsType.BIGINT), Long.MAX_VALUE).getBigint(0));
+        assertConversionFails(Types.LONG, column(OdpsType.BIGINT), Long.MIN_VALUE);
+        assertEquals(Double.valueOf(-3), write(Types.LONG, column(OdpsType.DOUBLE), -3L).getDouble(0));
+        assertEquals(new BigDecimal("123"), write(Types.LONG, column(OdpsType.DECIMAL), 123L).getDecimal(0));
+        assertEquals("-7", write(Types.LONG, column(OdpsType.STRING), -7L).getString(0));
+    }
+
+    @Test
+    public void testDoubleInput() {
+        assertEquals(Double.valueOf(2.25), write(Types.DOUBLE, column(OdpsType.DOUBLE), 2.25).getDouble(0));
+        assertEquals(new BigDecimal("0.1"), write(Types.DOUBLE, column(OdpsType.DECIMAL), 0.1).getDecimal(0));
+        assertEquals("1.5", write(Types.DOUBLE, column(OdpsType.STRING), 1.5).getString(0));
+        assertConversionFails(Types.DOUBLE, column(OdpsType.DECIMAL), Double.NaN);
+        assertConversionFails(Types.DOUBLE, column(OdpsType.DECIMAL), Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void testTimestampInput() {
+        Record record = write(Types.TIMESTAMP, column(OdpsType.DATETIME), Timestamp.ofEpochMilli(1500000000123L));
+        assertEquals(new Date(1500000000123L), record.getDatetime(0));
+    }
+
+    @Test
+    public void testNullInput() {
+        assertNull(write(Types.STRING, column(OdpsType.BIGINT), null).get(0));
+        assertNull(write(Types.LONG, column(OdpsType.STRING), null).get(0));
+        assertNull(write(Types.TIMESTAMP, column(OdpsType.DATETIME), null).get(0));
+        assertNull(write(Types.JSON, column(OdpsType.STRING), null).get(0));
+    }
+
+    @Test
+    public void testJsonToString() {
+        Value value = ValueFactory.newMap(ValueFactory.newString("a"), ValueFactory.newArray(ValueFactory.newInteger(1), ValueFactory.newNil()));
+        assertEquals("{\"a\":[1,null]}", write(Types.JSON, column(OdpsType.STRING), value).getString(0));
+    }
+
+    @Test
+    public void testJsonToArray() {
+        Value value = ValueFactory.newArray(ValueFactory.newInteger(1), ValueFactory.newString("2"), ValueFactory.newNil());
+        List<?> list = (List<?>) write(Types.JSON, column(OdpsType.ARRAY, OdpsType.BIGINT), value).get(0);
+        assertEquals(Arrays.asList(1L, 2L, null), list);
+
+        value = ValueFactory.newArray(ValueFactory.newString("a"), ValueFactory.newInteger(1), ValueFactory.newBoolean(true));
+        list = (List<?>) write(Types.JSON, column(OdpsType.ARRAY, OdpsType.STRING), value).get(0);
+        assertEquals(3, list.size());
+        assertArrayEquals(bytes("a"), (byte[]) list.get(0));
+        assertArrayEquals(bytes("1"), (byte[]) list.get(1));
+        assertArrayEquals(bytes("true"), (byte[]) list.get(2));
+
+        value = ValueFactory.newArray(ValueFactory.newInteger(1), ValueFactory.newFloat(2.5), ValueFactory.newString("3"));
+        list = (List<?>) write(Types.JSON, column(OdpsType.ARRAY, OdpsType.DOUBLE), value).get(0);
+        assertEquals(Arrays.asList(1.0, 2.5, 3.0), list);
+    }
+
+    @Test
+    public void testJsonToMap() {
+        Value value = ValueFactory.newMap(ValueFactory.newString("a"), ValueFactory.newFloat(1.5),
+                ValueFactory.newString("b"), ValueFactory.newString("2"));
+        Map<?, ?> map = (Map<?, ?>) write(Types.JSON, column(OdpsType.MAP, OdpsType.STRING, OdpsType.DOUBLE), value).get(0);
+        assertEquals(2, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            String key = new String((byte[]) entry.getKey(), StandardCharsets.UTF_8);
+            assertEquals("a".equals(key) ? 1.5 : 2.0, entry.getValue());
+        }
+
+        value = ValueFactory.newMap(ValueFactory.newString("1"), ValueFactory.newBoolean(false));
+        map = (Map<?, ?>) write(Types.JSON, column(OdpsType.MAP, OdpsType.BIGINT, OdpsType.BOOLEAN), value).get(0);
+        assertEquals(Collections.singletonMap(1L, false), map);
+    }
+
+    @Test
+    public void testInvalidJsonFails() {
+        Value object = ValueFactory.newMap(ValueFactory.newString("a"), ValueFactory.newInteger(1));
+        assertConversionFails(Types.JSON, column(OdpsType.ARRAY, OdpsType.BIGINT), object);
+        assertConversionFails(Types.JSON, column(OdpsType.MAP, OdpsType.STRING, OdpsType.BIGINT), ValueFactory.newArray(ValueFactory.newInteger(1)));
+        assertConversionFails(Types.JSON, column(OdpsType.ARRAY, OdpsType.BIGINT), ValueFactory.newArray(ValueFactory.newString("x")));
+        assertConversionFails(Types.JSON, column(OdpsType.ARRAY, OdpsType.BOOLEAN), ValueFactory.newArray(ValueFactory.newInteger(1)));
+        assertConversionFails(Types.JSON, column(OdpsType.ARRAY, OdpsType.BIGINT), ValueFactory.newArray(ValueFactory.newFloat(1.5)));
+    }
+
+    @Test
+    public void testUnsupportedTypesFailToCompile() {
+        assertCompileFails(Types.STRING, column(OdpsType.DATETIME));
+        assertCompileFails(Types.BOOLEAN, column(OdpsType.DOUBLE));
+        assertCompileFails(Types.LONG, column(OdpsType.BOOLEAN));
+        assertCompileFails(Types.LONG, column(OdpsType.DATETIME));
+        assertCompileFails(Types.DOUBLE, column(OdpsType.BIGINT));
+        assertCompileFails(Types.TIMESTAMP, column(OdpsType.STRING));
+        assertCompileFails(Types.JSON, column(OdpsType.BIGINT));
+        assertCompileFails(Types.JSON, column(OdpsType.ARRAY, OdpsType.DATETIME));
+        assertCompileFails(Types.JSON, column(OdpsType.MAP, OdpsType.STRING, OdpsType.ARRAY));
+    }
+
+    @Test
+    public void testMissingColumn() {
+        Schema schema = Schema.builder().add("col", Types.LONG).add("extra", Types.JSON).build();
+        ColumnWriter[] writers = ColumnWriter.compile(schema, tableSchema(column(OdpsType.BIGINT)), null);
+        // Json columns without target column are skipped
+        assertEquals(1, writers.length);
+
+        schema = Schema.builder().add("col", Types.LONG).add("extra", Types.STRING).build();
+        try {
+            ColumnWriter.compile(schema, tableSchema(column(OdpsType.BIGINT)), null);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No such column [extra]"));
+        }
+    }
+
+    @Test
+    public void testMappings() {
+        Schema schema = Schema.builder().add("input", Types.LONG).build();
+        TableSchema tableSchema = tableSchema(new com.aliyun.odps.Column("other", OdpsType.STRING), column(OdpsType.BIGINT));
+        ColumnWriter[] writers = ColumnWriter.compile(schema, tableSchema, Collections.singletonMap("input", "col"));
+        Record record = new ArrayRecord(tableSchema);
+        writeFirstRecord(schema, writers, record, 5L);
+        assertNull(record.get(0));
+        assertEquals(Long.valueOf(5), record.getBigint(1));
+    }
+
+    @Test
+    public void testRepeatedStrings() {
+        // Cached bytes of repeated values are shared, each record still gets its own value
+        Schema schema = Schema.builder().add("col", Types.STRING).build();
+        TableSchema tableSchema = tableSchema(column(OdpsType.STRING));
+        ColumnWriter[] writers = ColumnWriter.compile(schema, tableSchema, null);
+        Object[] values = new Object[5000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 3 == 0 ? "value" + (i % 7) : "unique" + i;
+        }
+        PageReader reader = new PageReader(schema);
+        Record record = new ArrayRecord(tableSchema);
+        int i = 0;
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+            reader.setPage(page);
+            while (reader.nextRecord()) {
+                writers[0].write(reader, record);
+                assertEquals(values[i++], record.getString(0));
+            }
+        }
+        assertEquals(values.length, i);
+    }
+
+    @Test
+    public void testCopyRecord() {
+        Schema schema = Schema.builder().add("col", Types.TIMESTAMP).build();
+        TableSchema tableSchema = tableSchema(column(OdpsType.DATETIME));
+        ColumnWriter[] writers = ColumnWriter.compile(schema, tableSchema, null);
+        Record record = new ArrayRecord(tableSchema);
+        writeFirstRecord(schema, writers, record, Timestamp.ofEpochMilli(1000L));
+        Record copy = ColumnWriter.copyRecord(record);
+        // Date shared by records of the column is changed by the next record, the copy keeps its value
+        writeFirstRecord(schema, writers, record, Timestamp.ofEpochMilli(2000L));
+        assertEquals(new Date(1000L), copy.getDatetime(0));
+        assertEquals(new Date(2000L), record.getDatetime(0));
+    }
+
+    private static com.aliyun.odps.Column column(OdpsType type, OdpsType... elementTypes) {
+        com.aliyun.odps.Column column = new com.aliyun.odps.Column("col", type);
+        if (elementTypes.length > 0) {
+            column.setGenericTypeList(Arrays.asList(elementTypes));
+        }
+        return column;
+    }
+
+    private static TableSchema tableSchema(com.aliyun.odps.Column... columns) {
+        TableSchema tableSchema = new TableSchema();
+        for (com.aliyun.odps.Column column : columns) {
+            tableSchema.addColumn(column);
+        }
+        return tableSchema;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Record write(Type inputType, com.aliyun.odps.Column target, Object value) {
+        Schema schema = Schema.builder().add("col", inputType).build();
+        TableSchema tableSchema = tableSchema(target);
+        ColumnWriter[] writers = ColumnWriter.compile(schema, tableSchema, null);
+        assertEquals(1, writers.length);
+        Record record = new ArrayRecord(tableSchema);
+        writeFirstRecord(schema, writers, record, value);
+        return record;
+    }
+
+    private void writeFirstRecord(Schema schema, ColumnWriter[] writers, Record record, Object value) {
+        PageReader reader = new PageReader(schema);
+        reader.setPage(PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, value).get(0));
+        assertTrue(reader.nextRecord());
+        for (ColumnWriter writer : writers) {
+            writer.write(reader, record);
+        }
+        reader.close();
+    }
+
+    private void assertConversionFails(Type inputType, com.aliyun.odps.Column target, Object value) {
+        try {
+            write(inputType, target, value);
+            fail(String.format("Value [%s] should not be converted to [%s]", value, target.getType()));
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to convert value"));
+        }
+    }
+
+    private void assertCompileFails(Type inputType, com.aliyun.odps.Column target) {
+        Schema schema = Schema.builder().add("col", inputType).build();
+        try {
+            ColumnWriter.compile(schema, tableSchema(target), null);
+            fail(String.format("Input type [%s] should not be loaded to [%s]", inputType, target.getType()));
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Could not load input column [col]"));
+        }
+    }
+}
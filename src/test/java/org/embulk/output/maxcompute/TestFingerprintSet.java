@@ -0,0 +1,125 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFingerprintSet {
+
+    // Smallest table of 1 << 16 slots, which spills once it holds more than 3/4 of the slots
+    private static final long MEMORY_BYTES = 1024;
+    private static final int SPILL_SIZE = 49153;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAddInMemory() throws IOException {
+        try (FingerprintSet set = new FingerprintSet(MEMORY_BYTES, folder.getRoot())) {
+            for (long i = 1; i <= 1000; i++) {
+                assertTrue(set.add(fingerprint(i)));
+            }
+            for (long i = 1; i <= 1000; i++) {
+                assertFalse(set.add(fingerprint(i)));
+            }
+            assertEquals(1000, set.size());
+            assertEquals(0, set.getRuns());
+            assertEquals(0, runFiles().length);
+        }
+    }
+
+    @Test
+    public void testZeroFingerprint() throws IOException {
+        try (FingerprintSet set = new FingerprintSet(MEMORY_BYTES, folder.getRoot())) {
+            // 0 marks empty slots, so it is kept as another value
+            assertTrue(set.add(0));
+            assertFalse(set.add(0));
+            assertEquals(1, set.size());
+            for (long i = 1; i <= SPILL_SIZE; i++) {
+                set.add(fingerprint(i));
+            }
+            assertEquals(1, set.getRuns());
+            // Found in the run file after spilled
+            assertFalse(set.add(0));
+            assertEquals(SPILL_SIZE + 1, set.size());
+        }
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        try (FingerprintSet set = new FingerprintSet(MEMORY_BYTES, folder.getRoot())) {
+            int count = SPILL_SIZE * 3 + 100;
+            for (long i = 1; i <= count; i++) {
+                assertTrue(set.add(fingerprint(i)));
+            }
+            assertEquals(3, set.getRuns());
+            assertEquals(3, runFiles().length);
+            assertEquals(count, set.size());
+            // Duplicates of fingerprints in each run and in the table
+            for (long i = 1; i <= count; i++) {
+                assertFalse(set.add(fingerprint(i)));
+            }
+            assertTrue(set.add(fingerprint(count + 1)));
+            assertEquals(count + 1, set.size());
+        }
+    }
+
+    @Test
+    public void testMergeRuns() throws IOException {
+        FingerprintSet set = new FingerprintSet(MEMORY_BYTES, folder.getRoot());
+        try {
+            int maxRuns = 0;
+            int count = SPILL_SIZE * 12;
+            for (long i = 1; i <= count; i++) {
+                assertTrue(set.add(fingerprint(i)));
+                maxRuns = Math.max(maxRuns, set.getRuns());
+            }
+            // Runs are merged into one once there are more than 8, then 3 more are spilled
+            assertEquals(8, maxRuns);
+            assertEquals(4, set.getRuns());
+            assertEquals(4, runFiles().length);
+            assertEquals(count, set.size());
+            for (long i = count; i >= 1; i--) {
+                assertFalse(set.add(fingerprint(i)));
+            }
+            assertTrue(set.add(fingerprint(count + 1)));
+        } finally {
+            set.close();
+        }
+        assertEquals(0, set.getRuns());
+        assertEquals(0, set.size());
+        assertEquals(0, runFiles().length);
+    }
+
+    @Test
+    public void testCloseDeletesRuns() throws IOException {
+        FingerprintSet set = new FingerprintSet(MEMORY_BYTES, folder.getRoot());
+        for (long i = 1; i <= SPILL_SIZE * 2; i++) {
+            set.add(fingerprint(i));
+        }
+        assertEquals(2, runFiles().length);
+        set.close();
+        assertEquals(0, runFiles().length);
+    }
+
+    private File[] runFiles() {
+        return folder.getRoot().listFiles();
+    }
+
+    // Spread values over the table and runs as fingerprints of records are
+    private static long fingerprint(long value) {
+        long hash = value * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
+    }
+}
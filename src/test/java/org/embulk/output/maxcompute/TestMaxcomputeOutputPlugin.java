@@ -1,5 +1,120 @@
 package org.embulk.output.maxcompute;
 
+import com.aliyun.odps.Column;
+import com.aliyun.odps.OdpsType;
+import com.aliyun.odps.TableSchema;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class TestMaxcomputeOutputPlugin
 {
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private MaxcomputeOutputPlugin plugin;
+    private Schema schema;
+    private TableSchema tableSchema;
+    private TableSchema partitionTableSchema;
+
+    @Before
+    public void setUp() {
+        plugin = new MaxcomputeOutputPlugin();
+        schema = Schema.builder().add("id", Types.LONG).add("name", Types.STRING).add("time", Types.TIMESTAMP).build();
+        tableSchema = new TableSchema();
+        tableSchema.addColumn(new Column("id", OdpsType.BIGINT));
+        tableSchema.addColumn(new Column("name", OdpsType.STRING));
+        tableSchema.addColumn(new Column("time", OdpsType.DATETIME));
+        partitionTableSchema = new TableSchema();
+        partitionTableSchema.addColumn(new Column("id", OdpsType.BIGINT));
+        partitionTableSchema.addColumn(new Column("name", OdpsType.STRING));
+        partitionTableSchema.addColumn(new Column("time", OdpsType.DATETIME));
+        partitionTableSchema.addPartitionColumn(new Column("dt", OdpsType.STRING));
+    }
+
+    @Test
+    public void testAppend() {
+        check(tableSchema, config());
+        check(tableSchema, config().set("overwrite", true));
+        check(tableSchema, config().set("overwrite", true).set("overwriteMode", "staging"));
+        check(partitionTableSchema, config().set("partition", "dt='20200101'"));
+        assertInvalid(tableSchema, config().set("mode", "upsert"), "Unsupported mode [upsert]");
+        assertInvalid(tableSchema, config().set("overwriteMode", "replace"), "Unsupported overwriteMode [replace]");
+    }
+
+    @Test
+    public void testMerge() {
+        check(tableSchema, config().set("mode", "merge").set("mergeKeys", Arrays.asList("id")));
+        check(tableSchema, config().set("mode", "merge").set("mergeKeys", Arrays.asList("id", "name")).set("mergeOrderColumn", "time"));
+        assertInvalid(tableSchema, config().set("mode", "merge").set("mergeKeys", Arrays.asList("id")).set("overwrite", true),
+                "overwrite could not be set with mode merge");
+        assertInvalid(tableSchema, config().set("mode", "merge"), "mergeKeys must be set with mode merge");
+        assertInvalid(tableSchema, config().set("mode", "merge").set("mergeKeys", Arrays.asList("id", "value")),
+                "Merge key [value] is not a column of target table");
+        assertInvalid(tableSchema, config().set("mode", "merge").set("mergeKeys", Arrays.asList("id")).set("mergeOrderColumn", "updated"),
+                "mergeOrderColumn [updated] is not a column of target table");
+    }
+
+    @Test
+    public void testSkipUploadedBlocks() {
+        check(tableSchema, config().set("skipUploadedBlocks", true));
+        check(tableSchema, config().set("adaptiveBlockSize", true));
+        assertInvalid(tableSchema, config().set("skipUploadedBlocks", true).set("adaptiveBlockSize", true),
+                "skipUploadedBlocks could not be set with adaptiveBlockSize");
+    }
+
+    @Test
+    public void testPartition() {
+        assertInvalid(partitionTableSchema, config(), "partition must be set");
+        assertInvalid(tableSchema, config().set("partition", "dt='20200101'"), "is not partition table in maxcompute");
+    }
+
+    @Test
+    public void testPartitionColumns() {
+        Object partitionColumns = Collections.singletonList(ImmutableMap.of("name", "dt", "column", "time"));
+        check(partitionTableSchema, config().set("partitionColumns", partitionColumns));
+        check(partitionTableSchema, config().set("partitionColumns", partitionColumns).set("overwrite", true).set("overwriteMode", "staging"));
+        assertInvalid(partitionTableSchema, config().set("partitionColumns", partitionColumns).set("partition", "dt='20200101'"),
+                "partition and partitionColumns could not be set at the same time");
+        assertInvalid(partitionTableSchema, config().set("partitionColumns", partitionColumns).set("overwrite", true),
+                "overwrite is only supported with overwriteMode staging with partitionColumns");
+        assertInvalid(tableSchema, config().set("partitionColumns", partitionColumns), "is not partition table in maxcompute");
+        assertInvalid(partitionTableSchema, config().set("partitionColumns", Collections.singletonList(ImmutableMap.of("name", "pt", "column", "time"))),
+                "partitionColumns [pt] must match partition keys [dt]");
+        assertInvalid(partitionTableSchema, config().set("partitionColumns", Collections.singletonList(ImmutableMap.of("name", "dt", "column", "date"))),
+                "No such input column [date] for partition [dt]");
+    }
+
+    private ConfigSource config() {
+        return Exec.newConfigSource()
+                .set("accessKeyId", "accessKeyId")
+                .set("accessKeySecret", "accessKeySecret")
+                .set("projectName", "project")
+                .set("tableName", "table");
+    }
+
+    private void check(TableSchema tableSchema, ConfigSource config) {
+        plugin.checkConfiguration(tableSchema, config.loadConfig(MaxcomputeOutputPlugin.PluginTask.class), schema);
+    }
+
+    private void assertInvalid(TableSchema tableSchema, ConfigSource config, String message) {
+        try {
+            check(tableSchema, config);
+            fail(message);
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMemoryBudget {
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testTryAcquire() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryAcquire(60));
+        assertFalse(budget.isAvailable(60));
+        assertFalse(budget.tryAcquire(60));
+        assertTrue(budget.tryAcquire(40));
+        assertEquals(100, budget.getUsed());
+        budget.release(60);
+        assertEquals(40, budget.getUsed());
+        assertTrue(budget.tryAcquire(60));
+        budget.release(1000);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testLargerThanLimit() {
+        // A buffer larger than the limit is granted when nothing else is reserved, so a writer is never stuck
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryAcquire(150));
+        assertFalse(budget.tryAcquire(1));
+        budget.release(150);
+        assertTrue(budget.isAvailable(150));
+    }
+
+    @Test(timeout = 10000)
+    public void testAcquireWaitsForRelease() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(80);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> acquiring = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    budget.acquire(50);
+                    return null;
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(acquiring.isDone());
+            assertEquals(80, budget.getUsed());
+            // Released bytes are not enough yet
+            budget.release(20);
+            Thread.sleep(200);
+            assertFalse(acquiring.isDone());
+            budget.release(20);
+            acquiring.get();
+            assertEquals(90, budget.getUsed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testAcquireInterrupted() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> acquiring = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        budget.acquire(10);
+                        return false;
+                    } catch (InterruptedIOException e) {
+                        return Thread.currentThread().isInterrupted();
+                    }
+                }
+            });
+            Thread.sleep(200);
+            executor.shutdownNow();
+            assertTrue(acquiring.get());
+            assertEquals(100, budget.getUsed());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGlobalKeepsFirstLimit() {
+        MemoryBudget first = MemoryBudget.global(1 << 30);
+        long limit = first.getLimit();
+        assertSame(first, MemoryBudget.global(limit * 2));
+        assertSame(first, MemoryBudget.global(limit / 2));
+        assertEquals(limit, first.getLimit());
+    }
+
+    @Test
+    public void testBufferBytes() {
+        assertEquals(1024 + 64, MemoryBudget.getBufferBytes(1024));
+        assertEquals(Integer.MAX_VALUE - 8, MemoryBudget.getBufferBytes(Long.MAX_VALUE / 2));
+    }
+}
@@ -0,0 +1,125 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestOdpsUtil {
+
+    private static final List<String> COLUMNS = Arrays.asList("id", "name", "value");
+    private static final List<String> NO_KEYS = Collections.emptyList();
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testQuote() {
+        assertEquals("`dt`", OdpsUtil.quoteName("dt"));
+        assertEquals("`a``b`", OdpsUtil.quoteName("a`b"));
+        assertEquals("'20200101'", OdpsUtil.quoteValue("20200101"));
+        assertEquals("'a\\'b'", OdpsUtil.quoteValue("a'b"));
+        // A trailing backslash does not escape the closing quote
+        assertEquals("'a\\\\'", OdpsUtil.quoteValue("a\\"));
+        assertEquals("'\\\\\\''", OdpsUtil.quoteValue("\\'"));
+    }
+
+    @Test
+    public void testFormatPartition() {
+        assertEquals("`dt`='20200101'", OdpsUtil.formatPartition("dt=20200101"));
+        assertEquals("`dt`='20200101', `hh`='01'", OdpsUtil.formatPartition("dt='20200101',hh=\"01\""));
+    }
+
+    @Test
+    public void testAddPartitionsSql() {
+        assertEquals("alter table `t` add IF NOT EXISTS partition(`dt`='20200101');",
+                OdpsUtil.getAddPartitionsSql("t", Collections.singletonList("dt='20200101'")));
+        assertEquals("alter table `t` add IF NOT EXISTS partition(`dt`='1', `hh`='00') partition(`dt`='1', `hh`='01');",
+                OdpsUtil.getAddPartitionsSql("t", Arrays.asList("dt='1',hh='00'", "dt='1',hh='01'")));
+    }
+
+    @Test
+    public void testDropPartitionSql() {
+        assertEquals("alter table `t` drop IF EXISTS partition(`dt`='20200101', `hh`='01');",
+                OdpsUtil.getDropPartitionSql("t", "dt='20200101',hh='01'"));
+    }
+
+    @Test
+    public void testOverwriteSqlWithStaticPartition() {
+        // A backslash kept in the value does not escape the closing quote of the literal
+        assertEquals("insert overwrite table `t` partition(`dt`='a\\\\', `hh`='01') select `id`, `name`, `value` from `s`"
+                        + " where `dt`='a\\\\' and `hh`='01';",
+                OdpsUtil.getOverwriteSql("t", "s", COLUMNS, NO_KEYS, "dt='a\\',hh=\"01\""));
+    }
+
+    @Test
+    public void testOverwriteSqlWithDynamicPartitions() {
+        assertEquals("insert overwrite table `t` partition(`dt`, `hh`) select * from `s`;",
+                OdpsUtil.getOverwriteSql("t", "s", COLUMNS, Arrays.asList("dt", "hh"), null));
+    }
+
+    @Test
+    public void testOverwriteSqlWithoutPartition() {
+        assertEquals("insert overwrite table `t` select * from `s`;", OdpsUtil.getOverwriteSql("t", "s", COLUMNS, NO_KEYS, null));
+    }
+
+    @Test
+    public void testMergeSqlWithStaticPartition() {
+        assertEquals("insert overwrite table `t` partition(`dt`='20200101')\n"
+                        + "select * from (\n"
+                        + "  select `id`, `name`, `value` from (select `id`, `name`, `value`, row_number() over (partition by `id`, `name` order by `id`, `name`)"
+                        + " as `embulk_merge_row_number` from `s` where `dt`='20200101') s"
+                        + " where `embulk_merge_row_number` = 1 or `id` is null or `name` is null\n"
+                        + "  union all\n"
+                        + "  select t.`id`, t.`name`, t.`value` from `t` t\n"
+                        + "  left outer join (select `id`, `name` from `s` where `dt`='20200101') d on t.`id` = d.`id` and t.`name` = d.`name`\n"
+                        + "  where d.`id` is null and t.`dt`='20200101'\n"
+                        + ") merged;",
+                OdpsUtil.getMergeSql("t", "s", COLUMNS, NO_KEYS, "dt='20200101'", null, Arrays.asList("id", "name"), null));
+    }
+
+    @Test
+    public void testMergeSqlWithDynamicPartitions() {
+        assertEquals("insert overwrite table `t` partition(`dt`, `hh`)\n"
+                        + "select * from (\n"
+                        + "  select `id`, `name`, `value`, `dt`, `hh` from (select `id`, `name`, `value`, `dt`, `hh`,"
+                        + " row_number() over (partition by `id`, `dt`, `hh` order by `value` desc) as `embulk_merge_row_number` from `s`) s"
+                        + " where `embulk_merge_row_number` = 1 or `id` is null\n"
+                        + "  union all\n"
+                        + "  select t.`id`, t.`name`, t.`value`, t.`dt`, t.`hh` from `t` t\n"
+                        + "  left outer join (select `id`, `dt`, `hh` from `s`) d on t.`id` = d.`id` and t.`dt` = d.`dt` and t.`hh` = d.`hh`\n"
+                        + "  where d.`id` is null and ((t.`dt`='1' and t.`hh`='00') or (t.`dt`='1' and t.`hh`='a\\\\'))\n"
+                        + ") merged;",
+                OdpsUtil.getMergeSql("t", "s", COLUMNS, Arrays.asList("dt", "hh"), null,
+                        Arrays.asList("dt='1',hh='00'", "dt='1',hh='a\\'"), Collections.singletonList("id"), "value"));
+    }
+
+    @Test
+    public void testMergeSqlKeepsOneStagingRowOfKeys() {
+        // The staging side is numbered within merge keys and partition keys, the row of the largest order column is kept
+        String merge = OdpsUtil.getMergeSql("t", "s", COLUMNS, Collections.singletonList("dt"), null,
+                Collections.singletonList("dt='1'"), Arrays.asList("id", "name"), "value");
+        assertTrue(merge, merge.contains("row_number() over (partition by `id`, `name`, `dt` order by `value` desc) as `embulk_merge_row_number`"));
+        assertTrue(merge, merge.contains(" s where `embulk_merge_row_number` = 1 or `id` is null or `name` is null\n"));
+    }
+
+    @Test
+    public void testMergeSqlWithoutPartition() {
+        assertEquals("insert overwrite table `t`\n"
+                        + "select * from (\n"
+                        + "  select `id`, `name`, `value` from (select `id`, `name`, `value`, row_number() over (partition by `id` order by `id`)"
+                        + " as `embulk_merge_row_number` from `s`) s where `embulk_merge_row_number` = 1 or `id` is null\n"
+                        + "  union all\n"
+                        + "  select t.`id`, t.`name`, t.`value` from `t` t\n"
+                        + "  left outer join (select `id` from `s`) d on t.`id` = d.`id`\n"
+                        + "  where d.`id` is null\n"
+                        + ") merged;",
+                OdpsUtil.getMergeSql("t", "s", COLUMNS, NO_KEYS, null, Collections.<String>emptyList(), Collections.singletonList("id"), null));
+    }
+}
@@ -0,0 +1,193 @@
+package org.embulk.output.maxcompute;
+
+import com.aliyun.odps.Odps;
+import com.aliyun.odps.PartitionSpec;
+import com.aliyun.odps.account.AliyunAccount;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestPartitionIndex {
+
+    private static final String PROJECT = "project";
+    private static final String TABLE = "partition_index_table";
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private HttpServer server;
+    private Odps odps;
+    // Existing partitions of the table, normalized
+    private final Set<String> partitions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger listings = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        odps = new Odps(new AliyunAccount("accessKeyId", "accessKeySecret"));
+        odps.setEndpoint(String.format("http://%s:%s", server.getAddress().getHostString(), server.getAddress().getPort()));
+        odps.setDefaultProject(PROJECT);
+        PartitionIndex.invalidate(PROJECT, TABLE);
+    }
+
+    @After
+    public void tearDown() {
+        PartitionIndex.invalidate(PROJECT, TABLE);
+        server.stop(0);
+    }
+
+    @Test
+    public void testDirectLookup() throws Exception {
+        partitions.add(PartitionIndex.normalize("pt='1'"));
+        PartitionIndex index = PartitionIndex.of(odps, PROJECT, TABLE);
+
+        assertEquals(Arrays.asList("pt=2"), index.filterMissing(Arrays.asList("pt=1", "pt=2")));
+        assertEquals(2, lookups.get());
+        // Existing partition is a hit with any quoting, missing partition is looked up again
+        assertEquals(Arrays.asList("pt='2'"), index.filterMissing(Arrays.asList("pt='1'", "pt='2'")));
+        assertEquals(3, lookups.get());
+        assertEquals(0, listings.get());
+    }
+
+    @Test
+    public void testListing() throws Exception {
+        List<String> candidates = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            candidates.add("pt=" + i);
+            if (i % 2 == 0) {
+                partitions.add(PartitionIndex.normalize("pt=" + i));
+            }
+        }
+        PartitionIndex index = PartitionIndex.of(odps, PROJECT, TABLE);
+
+        List<String> missing = index.filterMissing(candidates);
+        assertEquals(10, missing.size());
+        assertEquals("pt=1", missing.get(0));
+        assertEquals(1, listings.get());
+        assertEquals(0, lookups.get());
+        // All partitions are known once listed, misses need no request either
+        assertEquals(Arrays.asList("pt=21"), index.filterMissing(Arrays.asList("pt=2", "pt=21")));
+        assertEquals(1, listings.get());
+        assertEquals(0, lookups.get());
+    }
+
+    @Test
+    public void testAddAll() throws Exception {
+        PartitionIndex index = PartitionIndex.of(odps, PROJECT, TABLE);
+        List<String> missing = index.filterMissing(Arrays.asList("pt=1", "pt=2"));
+        assertEquals(Arrays.asList("pt=1", "pt=2"), missing);
+        assertEquals(2, lookups.get());
+
+        // Partitions added by the job are known without asking the service
+        for (String partition : missing) {
+            partitions.add(PartitionIndex.normalize(partition));
+        }
+        index.addAll(missing);
+        assertEquals(Collections.<String>emptyList(), index.filterMissing(Arrays.asList("pt='1'", "pt=2")));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        PartitionIndex index = PartitionIndex.of(odps, PROJECT, TABLE);
+        assertSame(index, PartitionIndex.of(odps, PROJECT, TABLE));
+        index.addAll(Arrays.asList("pt=1"));
+        assertEquals(Collections.<String>emptyList(), index.filterMissing(Arrays.asList("pt=1")));
+        assertEquals(0, lookups.get());
+
+        // Partitions added by a former job may have been dropped since, the next job asks the service again
+        PartitionIndex.invalidate(PROJECT, TABLE);
+        PartitionIndex newIndex = PartitionIndex.of(odps, PROJECT, TABLE);
+        assertNotSame(index, newIndex);
+        assertEquals(Arrays.asList("pt=1"), newIndex.filterMissing(Arrays.asList("pt=1")));
+        assertEquals(1, lookups.get());
+        // Index of another table is not shared
+        assertNotSame(newIndex, PartitionIndex.of(odps, PROJECT, TABLE + "_other"));
+        PartitionIndex.invalidate(PROJECT, TABLE + "_other");
+    }
+
+    /**
+     * Answer the partition lookup and listing of the ODPS service, other requests of the SDK are accepted and ignored
+     */
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (null == query || !"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 200, "");
+            return;
+        }
+        for (String param : query.split("&")) {
+            if ("partitions".equals(param)) {
+                listings.incrementAndGet();
+                StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Partitions><Marker></Marker>");
+                for (String partition : partitions) {
+                    PartitionSpec spec = new PartitionSpec(partition);
+                    xml.append("<Partition>");
+                    for (String key : spec.keys()) {
+                        xml.append(String.format("<Column Name=\"%s\" Value=\"%s\"/>", key, spec.get(key)));
+                    }
+                    xml.append("</Partition>");
+                }
+                send(exchange, 200, xml.append("</Partitions>").toString());
+                return;
+            } else if (param.startsWith("partition=")) {
+                lookups.incrementAndGet();
+                String partition = URLDecoder.decode(param.substring("partition=".length()), "UTF-8");
+                if (partitions.contains(PartitionIndex.normalize(partition))) {
+                    send(exchange, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Partition><Schema><![CDATA["
+                            + "{\"createTime\":1,\"lastDDLTime\":1,\"lastModifiedTime\":1,\"partitionSize\":0}]]></Schema></Partition>");
+                } else {
+                    send(exchange, 404, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchPartition</Code>"
+                            + "<Message>" + partition + "</Message></Error>");
+                }
+                return;
+            }
+        }
+        send(exchange, 200, "");
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
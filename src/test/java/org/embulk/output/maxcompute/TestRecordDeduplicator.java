@@ -0,0 +1,136 @@
+package org.embulk.output.maxcompute;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRecordDeduplicator {
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDuplicateKeys() throws IOException {
+        Schema schema = Schema.builder().add("id", Types.LONG).add("name", Types.STRING).add("value", Types.DOUBLE).build();
+        List<Boolean> duplicates = dedup(schema, Arrays.asList("id", "name"), 1 << 20,
+                1L, "a", 1.0,
+                1L, "b", 2.0,
+                1L, "a", 3.0,
+                2L, "a", 4.0,
+                null, "a", 5.0,
+                null, "a", 6.0,
+                1L, null, 7.0,
+                1L, "", 8.0);
+        assertEquals(Arrays.asList(false, false, true, false, false, true, false, false), duplicates);
+    }
+
+    @Test
+    public void testKeyPositions() throws IOException {
+        // Values moved between keys are other keys
+        Schema schema = Schema.builder().add("a", Types.STRING).add("b", Types.STRING).build();
+        List<Boolean> duplicates = dedup(schema, Arrays.asList("a", "b"), 1 << 20,
+                "x", "y",
+                "y", "x",
+                "xy", "",
+                "", "xy",
+                null, "x",
+                "x", null,
+                "y", "x");
+        assertEquals(Arrays.asList(false, false, false, false, false, false, true), duplicates);
+    }
+
+    @Test
+    public void testKeyTypes() throws IOException {
+        Schema schema = Schema.builder().add("flag", Types.BOOLEAN).add("time", Types.TIMESTAMP).add("json", Types.JSON).build();
+        List<Boolean> duplicates = dedup(schema, Arrays.asList("flag", "time", "json"), 1 << 20,
+                true, Timestamp.ofEpochSecond(1, 0), ValueFactory.newString("a"),
+                false, Timestamp.ofEpochSecond(1, 0), ValueFactory.newString("a"),
+                true, Timestamp.ofEpochSecond(1, 1), ValueFactory.newString("a"),
+                true, Timestamp.ofEpochSecond(1, 0), ValueFactory.newArray(ValueFactory.newString("a")),
+                true, Timestamp.ofEpochSecond(1, 0), ValueFactory.newString("a"));
+        assertEquals(Arrays.asList(false, false, false, false, true), duplicates);
+    }
+
+    @Test
+    public void testDuplicatesAcrossRuns() throws IOException {
+        Schema schema = Schema.builder().add("id", Types.LONG).build();
+        int count = 600000;
+        Object[] values = new Object[count * 2];
+        for (int i = 0; i < count; i++) {
+            values[i] = (long) i;
+            // Same keys again in reverse order, found in the merged run, the later runs or the table
+            values[count + i] = (long) (count - 1 - i);
+        }
+        try (RecordDeduplicator deduplicator = new RecordDeduplicator(RecordDeduplicator.compileKeys(Collections.singletonList("id"), schema),
+                1024, folder.getRoot())) {
+            List<Boolean> duplicates = dedup(deduplicator, schema, values);
+            assertEquals(Collections.nCopies(count, false), duplicates.subList(0, count));
+            assertEquals(Collections.nCopies(count, true), duplicates.subList(count, count * 2));
+            assertEquals(count, deduplicator.getDroppedRecords());
+            assertEquals(count, deduplicator.getKeys());
+            assertTrue(deduplicator.getRuns() > 1);
+            assertEquals(deduplicator.getRuns(), folder.getRoot().listFiles().length);
+        }
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testCompileKeys() {
+        Schema schema = Schema.builder().add("id", Types.LONG).add("name", Types.STRING).build();
+        assertEquals(Arrays.asList(schema.getColumn(1), schema.getColumn(0)),
+                Arrays.asList(RecordDeduplicator.compileKeys(Arrays.asList("name", "id"), schema)));
+        try {
+            RecordDeduplicator.compileKeys(Collections.singletonList("missing"), schema);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No such input column [missing]"));
+        }
+    }
+
+    private List<Boolean> dedup(Schema schema, List<String> keys, long memoryBytes, Object... values) throws IOException {
+        try (RecordDeduplicator deduplicator = new RecordDeduplicator(RecordDeduplicator.compileKeys(keys, schema), memoryBytes, folder.getRoot())) {
+            List<Boolean> duplicates = dedup(deduplicator, schema, values);
+            long dropped = 0;
+            for (Boolean duplicate : duplicates) {
+                dropped += duplicate ? 1 : 0;
+            }
+            assertEquals(dropped, deduplicator.getDroppedRecords());
+            assertEquals(duplicates.size() - dropped, deduplicator.getKeys());
+            return duplicates;
+        }
+    }
+
+    private List<Boolean> dedup(RecordDeduplicator deduplicator, Schema schema, Object... values) throws IOException {
+        List<Boolean> duplicates = new ArrayList<Boolean>();
+        PageReader reader = new PageReader(schema);
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+            reader.setPage(page);
+            while (reader.nextRecord()) {
+                duplicates.add(deduplicator.isDuplicate(reader));
+            }
+        }
+        reader.close();
+        return duplicates;
+    }
+}
@@ -0,0 +1,62 @@
+package org.embulk.output.maxcompute;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRetryPolicy {
+
+    @Test
+    public void testBackoff() {
+        RetryPolicy retryPolicy = new RetryPolicy(6, 4000, 128000);
+        assertEquals(6, retryPolicy.getRetryLimit());
+        long[] waits = {4000, 8000, 16000, 32000, 64000, 128000, 128000, 128000};
+        for (int retry = 0; retry < waits.length; retry++) {
+            assertEquals(waits[retry], retryPolicy.getWaitMillis(retry));
+        }
+    }
+
+    @Test
+    public void testBackoffOverflow() {
+        assertEquals(128000, new RetryPolicy(100, 4000, 128000).getWaitMillis(100));
+        assertEquals(Long.MAX_VALUE, new RetryPolicy(100, Long.MAX_VALUE / 2, Long.MAX_VALUE).getWaitMillis(2));
+        // Doubling stops after 30 retries
+        assertEquals(1L << 30, new RetryPolicy(100, 1, Long.MAX_VALUE).getWaitMillis(63));
+    }
+
+    @Test
+    public void testBounds() {
+        RetryPolicy negative = new RetryPolicy(-1, -5, -10);
+        assertEquals(0, negative.getRetryLimit());
+        assertEquals(0, negative.getWaitMillis(3));
+        // Max wait is at least the first wait
+        RetryPolicy smallMax = new RetryPolicy(3, 1000, 10);
+        assertEquals(1000, smallMax.getWaitMillis(0));
+        assertEquals(1000, smallMax.getWaitMillis(3));
+    }
+
+    @Test
+    public void testAwait() throws InterruptedIOException {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 50, 200);
+        long startTime = System.nanoTime();
+        retryPolicy.await(1);
+        assertTrue((System.nanoTime() - startTime) / 1000000 >= 100);
+    }
+
+    @Test
+    public void testAwaitInterrupted() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 60000, 60000);
+        Thread.currentThread().interrupt();
+        try {
+            retryPolicy.await(0);
+            fail();
+        } catch (InterruptedIOException e) {
+            // Interrupt is kept for the caller
+            assertTrue(Thread.interrupted());
+        }
+    }
+}